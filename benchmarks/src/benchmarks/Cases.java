@@ -0,0 +1,29 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+final class Cases {
+    //calls the factories in BenchmarkCases, which is in the default package and so can only be reached by reflection.
+    //only ever called from @Setup methods, so none of this is timed
+
+    private static final String cases_class = "BenchmarkCases";
+
+    private Cases(){}
+
+    @SuppressWarnings("unchecked")
+    static <T> T create(String factory, Object... args) throws Exception{
+        for(Method method : Class.forName(cases_class).getMethods()){
+            if(!method.getName().equals(factory) || method.getParameterCount() != args.length) continue;
+            try{
+                return (T)method.invoke(null, args);
+            }catch(InvocationTargetException e){
+                Throwable cause = e.getCause();
+                if(cause instanceof Exception) throw (Exception)cause;
+                if(cause instanceof Error) throw (Error)cause;
+                throw e;
+            }
+        }
+        throw new IllegalArgumentException("no factory "+cases_class+"."+factory+" taking "+args.length+" arguments");
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntToDoubleFunction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class MicrohabitatBenchmarks {
+    //the per-bacterium work inside a tau step, on a microhab of K = 120
+
+    @State(Scope.Thread)
+    public static class Rates {
+        IntToDoubleFunction rate;
+        int index = 0;
+
+        @Setup
+        public void build() throws Exception{
+            rate = Cases.create("replicationOrDeathRate");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AddAndRemove {
+        Runnable add_and_remove;
+
+        @Setup
+        public void build() throws Exception{
+            add_and_remove = Cases.create("addAndRemoveABacterium");
+        }
+    }
+
+
+    @Benchmark
+    public void replicationOrDeathRate(Rates state, Blackhole blackhole){
+        //a different bacterium each call. the mask keeps the index from going negative when it wraps
+        blackhole.consume(state.rate.applyAsDouble(state.index));
+        state.index = (state.index + 1) & Integer.MAX_VALUE;
+    }
+
+    @Benchmark
+    public void addAndRemoveABacterium(AddAndRemove state){
+        state.add_and_remove.run();
+    }
+}
@@ -0,0 +1,79 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1000, batchSize = SimulationBenchmarks.steps)
+@Measurement(iterations = 50, batchSize = SimulationBenchmarks.steps)
+@Fork(2)
+public class SimulationBenchmarks {
+    //BioSystem.performAction for each engine. a step changes the biofilm, so each iteration starts from a freshly
+    //built one and times a fixed batch of steps from it, which keeps the state being timed close to the thickness
+    //and fill asked for. scores are per batch, i.e. per 100 steps. the batches are short, so it takes a lot of
+    //warmup iterations before the steps are fully jit compiled
+
+    static final int steps = 100;
+
+    @State(Scope.Thread)
+    public static class TauLeaping {
+        @Param({"1", "10", "40"}) public int thickness;
+        @Param({"0.3", "0.9"}) public double fill;
+        Runnable step;
+
+        @Setup(Level.Iteration)
+        public void build() throws Exception{
+            step = Cases.create("performAction", "tau_leaping", thickness, fill);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Categorical {
+        @Param({"1", "10", "40"}) public int thickness;
+        Runnable step;
+
+        @Setup(Level.Iteration)
+        public void build() throws Exception{
+            step = Cases.create("performAction", "categorical", thickness, 0.9);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class OtherEngines {
+        @Param({"adaptive_tau", "genotype_classes", "gillespie"}) public String engine;
+        Runnable step;
+
+        @Setup(Level.Iteration)
+        public void build() throws Exception{
+            step = Cases.create("performAction", engine, 10, 0.9);
+        }
+    }
+
+
+    @Benchmark
+    public void tauLeaping(TauLeaping state){
+        state.step.run();
+    }
+
+    @Benchmark
+    public void categorical(Categorical state){
+        state.step.run();
+    }
+
+    @Benchmark
+    public void otherEngines(OtherEngines state){
+        state.step.run();
+    }
+}
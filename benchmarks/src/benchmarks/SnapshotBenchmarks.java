@@ -0,0 +1,63 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+public class SnapshotBenchmarks {
+    //taking a population snapshot of a biofilm, the old way (an ArrayList per microhab) and into a SnapshotStore.
+    //snapshotStoreAdd's scores are per batch of 20 snapshots
+
+    @State(Scope.Thread)
+    public static class Populations {
+        @Param({"10", "40"}) public int thickness;
+        Supplier<Object> populations;
+
+        @Setup
+        public void build() throws Exception{
+            populations = Cases.create("getMicrohabPopulations", thickness);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Store {
+        @Param({"10", "40"}) public int thickness;
+        Runnable add;
+
+        @Setup(Level.Iteration)
+        public void build() throws Exception{
+            //a store only grows, so each iteration adds a fixed batch to a new one
+            add = Cases.create("snapshotStoreAdd", thickness);
+        }
+    }
+
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 10, time = 1)
+    public Object getMicrohabPopulations(Populations state){
+        return state.populations.get();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 200, batchSize = 20)
+    @Measurement(iterations = 50, batchSize = 20)
+    public void snapshotStoreAdd(Store state){
+        state.add.run();
+    }
+}
@@ -0,0 +1,73 @@
+package benchmarks;
+
+import java.io.Closeable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class WriterBenchmarks {
+    //Toolbox's output writers, each writing into benchmark_output in the working directory. apart from the event
+    //counters line, every call writes a whole file: a run's populations at thickness 10 (100 snapshots), or a
+    //200 measurement mic summary (the default no.)
+
+    @State(Scope.Thread)
+    public static class Writer {
+        @Param({"writeDataboxMicrohabPopsToFile", "writeDataboxMicrohabPopsToBinaryFile",
+                "writeDataboxMicrohabPopsToBinaryFile/compressed", "writeMICSummaryToFile",
+                "writeMultipleColumnsToFile", "writeHistoArrayToFile"})
+        public String writer;
+        Callable<Object> write;
+
+        @Setup
+        public void build() throws Exception{
+            write = Cases.create("toolboxWriter", writer);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class EventCounters {
+        Object lines; //a Callable and Closeable
+        Callable<?> write;
+
+        @Setup(Level.Iteration)
+        public void open() throws Exception{
+            //a new file each iteration, so it doesn't grow across the whole run
+            lines = Cases.create("eventCountersLines");
+            write = (Callable<?>)lines;
+        }
+
+        @TearDown(Level.Iteration)
+        public void close() throws Exception{
+            ((Closeable)lines).close();
+        }
+    }
+
+
+    @Benchmark
+    public Object toolboxWriter(Writer state) throws Exception{
+        return state.write.call();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object writeEventCountersLine(EventCounters state) throws Exception{
+        return state.write.call();
+    }
+}
@@ -0,0 +1,176 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.Supplier;
+
+public class BenchmarkCases {
+    //the states the jmh benchmarks in benchmarks/src time, built from fixed seeds. jmh won't generate benchmarks for
+    //classes in the default package, and a named package can't see this one, so the benchmarks look these factories
+    //up by name (once per setup, never in the timed code) and only ever hold what they return as jdk interfaces.
+    //build and run with: mvn -B package -Pbenchmarks && java -jar target/benchmarks.jar [regex] [-prof gc]
+    //-prof gc gives the bytes allocated per op.
+
+    private static final long seed = 20190726L;
+    static final String output_directory = "benchmark_output";
+    private static final ParameterPoint point = new ParameterPoint(2.71760274, 0.56002833);
+
+
+    ////////////////// TAU STEPS ///////////////////////////
+    public static Runnable performAction(String engine, int thickness, double fill){
+        //a fresh system, so the state being timed stays close to the thickness and fill asked for
+        RunOptions options = new RunOptions().setMasterSeed(seed);
+        switch(engine){
+            case "tau_leaping": break;
+            case "adaptive_tau": options.setAdaptiveTau(true); break;
+            case "categorical": options.setLeapingScheme(RunOptions.LeapingScheme.CATEGORICAL); break;
+            case "genotype_classes": options.setGenotypeClasses(true); break;
+            case "gillespie": options.setEngine(RunOptions.Engine.GILLESPIE); break;
+            default: throw new IllegalArgumentException("no engine called "+engine);
+        }
+        BioSystem bs = BioSystem.withBiofilm(point, thickness, fill, options);
+        return bs::performAction;
+    }
+
+
+    ////////////////// MICROHABITAT ///////////////////////////
+    public static IntToDoubleFunction replicationOrDeathRate(){
+        //the rate of bacterium i % N in a full microhab
+        Microhabitat m = filledMicrohabitat(1.);
+        double crowding = m.crowdingFactor();
+        int N = m.getN();
+        return i -> m.replicationOrDeathRate(i % N, crowding);
+    }
+
+    public static Runnable addAndRemoveABacterium(){
+        Microhabitat m = filledMicrohabitat(0.5);
+        double MIC = m.getMIC(0);
+        return () -> {
+            m.addABacterium(MIC);
+            m.removeABacterium(0);
+        };
+    }
+
+
+    ////////////////// SNAPSHOTS ///////////////////////////
+    public static Supplier<Object> getMicrohabPopulations(int thickness){
+        //the way snapshots were taken before SnapshotStore, a list of boxed MICs per microhab, kept here to compare with
+        BioSystem bs = BioSystem.withBiofilm(point, thickness, 0.9, new RunOptions().setMasterSeed(seed));
+        return () -> {
+            ArrayList<ArrayList<Double>> mh_pops = new ArrayList<>();
+            for(Microhabitat m : bs.getMicrohabitats()){
+                ArrayList<Double> mh_pop = new ArrayList<>(m.getN());
+                for(double geno : m.getPopulation()) mh_pop.add(geno);
+                mh_pops.add(mh_pop);
+            }
+            return mh_pops;
+        };
+    }
+
+    public static Runnable snapshotStoreAdd(int thickness){
+        //into a new, empty store
+        BioSystem bs = BioSystem.withBiofilm(point, thickness, 0.9, new RunOptions().setMasterSeed(seed));
+        SnapshotStore snapshots = new SnapshotStore(false);
+        return () -> snapshots.add(bs.captureState(StateCapture.Kind.SCHEDULED, 0, 1));
+    }
+
+
+    ////////////////// TOOLBOX WRITERS ///////////////////////////
+    public static Callable<Object> toolboxWriter(String writer) throws IOException{
+        //one whole file per call, rewritten each time
+        new File(output_directory).mkdirs();
+        switch(writer){
+            case "writeDataboxMicrohabPopsToFile":{
+                DataBox snapshots = snapshotDataBox(10, 100);
+                return () -> {
+                    Toolbox.writeDataboxMicrohabPopsToFile(output_directory, "mh_pops", snapshots);
+                    return null;
+                };
+            }
+            case "writeDataboxMicrohabPopsToBinaryFile":{
+                DataBox snapshots = snapshotDataBox(10, 100);
+                return () -> {
+                    Toolbox.writeDataboxMicrohabPopsToBinaryFile(output_directory, "mh_pops", snapshots, false, false);
+                    return null;
+                };
+            }
+            case "writeDataboxMicrohabPopsToBinaryFile/compressed":{
+                DataBox snapshots = snapshotDataBox(10, 100);
+                return () -> {
+                    Toolbox.writeDataboxMicrohabPopsToBinaryFile(output_directory, "mh_pops_deflated", snapshots, true, true);
+                    return null;
+                };
+            }
+            case "writeMICSummaryToFile":{
+                MICSummary summary = summaryOf(10, 200);
+                return () -> {
+                    Toolbox.writeMICSummaryToFile(output_directory, "mic_summary", summary);
+                    return null;
+                };
+            }
+            case "writeMultipleColumnsToFile":{
+                double[][] columns = new double[4][10000];
+                for(double[] column : columns) Arrays.fill(column, Math.PI);
+                return () -> {
+                    Toolbox.writeMultipleColumnsToFile(output_directory+"/columns", new String[]{"a", "b", "c", "d"}, columns);
+                    return null;
+                };
+            }
+            case "writeHistoArrayToFile":{
+                int[] histo = new int[10000];
+                Arrays.fill(histo, 12345);
+                return () -> {
+                    Toolbox.writeHistoArrayToFile(output_directory+"/histo", histo);
+                    return null;
+                };
+            }
+            default: throw new IllegalArgumentException("no writer called "+writer);
+        }
+    }
+
+    public static Object eventCountersLines() throws IOException{
+        //a Callable appending one line per call to a freshly created event counters file, and Closeable to close it
+        return new EventCountersLines();
+    }
+
+    private static class EventCountersLines implements Callable<Object>, Closeable {
+        private final int[] counters = {1, 12, 3456, 789, 10111, 213141, 4200};
+        private final TextEncoder out = Toolbox.openEventCountersFile(output_directory, "event_counters", BioSystem.event_counter_headers);
+
+        EventCountersLines() throws IOException{}
+
+        public Object call() throws IOException{
+            Toolbox.writeEventCountersLine(out, BioSystem.event_counter_headers, counters);
+            return null;
+        }
+
+        public void close() throws IOException{
+            out.close();
+        }
+    }
+
+
+    private static Microhabitat filledMicrohabitat(double fill){
+        Microhabitat m = new Microhabitat(1., point.scale, point.sigma, point.K, false, Xoshiro256StarStar.forReplicate(seed, 0));
+        m.addARandomBacterium_x_N((int)(fill*point.K));
+        return m;
+    }
+
+    private static DataBox snapshotDataBox(int thickness, int n_snapshots){
+        BioSystem bs = BioSystem.withBiofilm(point, thickness, 0.9, new RunOptions().setMasterSeed(seed));
+        SnapshotStore snapshots = new SnapshotStore(false);
+        for(int t = 0; t < n_snapshots; t++) snapshots.add(bs.captureState(StateCapture.Kind.SCHEDULED, 0, 1));
+        return new DataBox(0, new int[]{0, thickness, 0, 0, 0, 0, 0}, snapshots);
+    }
+
+    private static MICSummary summaryOf(int thickness, int n_measurements){
+        RunOptions options = new RunOptions().setMasterSeed(seed);
+        BioSystem bs = BioSystem.withBiofilm(point, thickness, 0.9, options);
+        MICSummary summary = new MICSummary(options);
+        for(int t = 0; t < n_measurements; t++) summary.record(bs.captureState(StateCapture.Kind.SCHEDULED, 0, 1));
+        return summary;
+    }
+}
@@ -0,0 +1,48 @@
+import org.apache.commons.math3.random.RandomGenerator;
+
+class BinomialSampler {
+    //binomial sampler for genotype class updates, where n is a class size (at most a few hundred) and p is the
+    //probability of an event over one tau step, usually ~1e-3. draws from the simulation's own generator and
+    //allocates nothing per call.
+
+    private static final double max_inversion_mean = 30.; //above this, the inversion loop gets long
+
+    private RandomGenerator rand;
+
+    BinomialSampler(RandomGenerator rand){
+        this.rand = rand;
+    }
+
+
+    int sample(int n, double p){
+        if(n <= 0 || p <= 0.) return 0;
+        if(p >= 1.) return n;
+        if(p > 0.5) return n - sample(n, 1. - p);
+
+        if(n*p > max_inversion_mean) return sampleBernoulliSum(n, p);
+
+        //inversion, using the recurrence P(k+1) = P(k)*(n-k)/(k+1)*p/q
+        double q = 1. - p;
+        double ratio = p/q;
+        double prob = Math.exp(n*Math.log1p(-p));
+        double cdf = prob;
+        double u = rand.nextDouble();
+        int k = 0;
+
+        while(u > cdf && k < n){
+            prob *= ratio*(n - k)/(k + 1.);
+            k++;
+            cdf += prob;
+        }
+        return k;
+    }
+
+    private int sampleBernoulliSum(int n, double p){
+        int k = 0;
+        for(int i = 0; i < n; i++){
+            if(rand.nextDouble() < p) k++;
+        }
+        return k;
+    }
+
+}
@@ -1,12 +1,32 @@
-import org.apache.commons.math3.distribution.PoissonDistribution;
-
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CancellationException;
 import java.util.stream.IntStream;
 
 class BioSystem {
 
-    private Random rand = new Random();
+    //every random draw in a run comes from rand, which is seeded from the master seed, the parameter point and runID,
+    //so runs at different points are independent. with options.common_random_numbers, the point is left out of the
+    //seed and the no. of immigrants, migrations and their directions, and immigrant MICs are drawn from streams of
+    //their own instead, so that runID r at two parameter points sees the same immigration history and MIC draws,
+    //and differences between the points aren't swamped by unrelated noise. otherwise those streams are all rand.
+    //with options.antithetic_pairs, odd runIDs reuse the seeds of the even runID before them,
+    //with every draw antithetic to it
+    private Xoshiro256StarStar rand, immigration_rand, migration_rand, mic_rand;
+    private PoissonSampler poisson, immigration_poisson, migration_poisson;
+    private BinomialSampler binomial, migration_binomial;
+    private EventBatch event_batch; //samples the per-bacterium events of a tau step a microhab at a time
+
+    private static final double run_duration = 25.*7.*24.; //25 week duration
+    private static final int n_measurements = 100;
+    private static final int cancellation_check_mask = 255; //runs check whether they've been cancelled every 256 steps
 
     private double alpha, c_max; //steepness and max val of antimicrobial concn
     private double scale, sigma; //mic distb shape parameters
@@ -14,26 +34,80 @@ class BioSystem {
     private double time_elapsed, exit_time; //exit time is the time it took for the biofilm to reach the thickness limit, if it did
     private int immigration_index;
 
-    private double deterioration_rate = 0.0516;
-    private double immigration_rate = 0.8;
-    private double tau = 0.01;
+    private int K; //karryking kapacity of each microhab
+    private double deterioration_rate;
+    private double immigration_rate;
+    private double tau;
     private double delta_x = 5.;
     private int thickness_limit = 50; //this is how big the system can get before we exit. should reduce overall simulation duration
     private int n_detachments = 0, n_deaths = 0, n_replications = 0, n_immigrations = 0;
+    private int n_sweeps = 0, n_rejected_sweeps = 0; //sampling sweeps attempted and thrown away due to multiple events
+    private RunOptions options;
+    private ObserverPipeline event_observers; //told about microhabs being added and the thickness limit, if set
+    private int event_runID;
+
+    //gillespie engine state. per microhab, replication weights of bacteria with phi_c > 0 and death rates of those
+    //with phi_c < 0 are kept in sum-trees indexed like the microhab population, and the total propensity of each
+    //microhab sits in a top level tree.
+    private ArrayList<FenwickTree> growth_trees, death_trees;
+    private FenwickTree mh_propensities;
+
+    //hybrid engine state, by microhab index: time collected towards the next coarse step, and that step's length
+    private double[] hybrid_pending, hybrid_target;
+
 
+    private BioSystem(ParameterPoint params, int runID){
+        this(params, runID, new RunOptions());
+    }
 
-    private BioSystem(double alpha, double c_max, double scale, double sigma){
+    private BioSystem(ParameterPoint params, int runID, RunOptions options){
 
-        this.alpha = alpha;
-        this.c_max = c_max;
-        this.scale = scale;
-        this.sigma = sigma;
+        this.alpha = params.alpha;
+        this.c_max = params.c_max;
+        this.scale = params.scale;
+        this.sigma = params.sigma;
+        this.K = params.K;
+        this.deterioration_rate = params.deterioration_rate;
+        this.immigration_rate = params.immigration_rate;
         this.microhabitats = new ArrayList<>();
         this.time_elapsed = 0.;
         this.exit_time = 0.;
         this.immigration_index = 0;
+        this.options = options;
+        this.tau = options.tau;
+        int seed_runID = options.antithetic_pairs ? (runID & ~1) : runID;
+        boolean antithetic = options.antithetic_pairs && (runID & 1) == 1;
+        long seed = options.common_random_numbers ? options.master_seed
+                : Xoshiro256StarStar.pointSeed(options.master_seed, params.seedHash());
+        this.rand = Xoshiro256StarStar.forStream(seed, seed_runID, 0, antithetic);
+        this.poisson = new PoissonSampler(rand);
+        this.binomial = new BinomialSampler(rand);
+        if(options.common_random_numbers){
+            this.immigration_rand = Xoshiro256StarStar.forStream(seed, seed_runID, 1, antithetic);
+            this.migration_rand = Xoshiro256StarStar.forStream(seed, seed_runID, 2, antithetic);
+            this.mic_rand = Xoshiro256StarStar.forStream(seed, seed_runID, 3, antithetic);
+            this.immigration_poisson = new PoissonSampler(immigration_rand);
+            this.migration_poisson = new PoissonSampler(migration_rand);
+            this.migration_binomial = new BinomialSampler(migration_rand);
+        }else{
+            this.immigration_rand = this.migration_rand = this.mic_rand = rand;
+            this.immigration_poisson = this.migration_poisson = poisson;
+            this.migration_binomial = binomial;
+        }
+        this.event_batch = new EventBatch(rand, poisson, migration_rand, migration_poisson);
+        if(options.engine == RunOptions.Engine.GILLESPIE && options.genotype_classes){
+            throw new IllegalArgumentException("the gillespie engine works on individual bacteria, not genotype classes");
+        }
+        if(options.hybrid && !(options.genotype_classes && options.engine == RunOptions.Engine.TAU_LEAPING)){
+            throw new IllegalArgumentException("the hybrid engine needs tau leaping with genotype classes");
+        }
+        if(options.leaping_scheme == RunOptions.LeapingScheme.CATEGORICAL && (options.genotype_classes || options.engine != RunOptions.Engine.TAU_LEAPING)){
+            throw new IllegalArgumentException("the categorical leaping scheme is for tau leaping on individual bacteria");
+        }
+        this.hybrid_pending = new double[thickness_limit];
+        this.hybrid_target = new double[thickness_limit];
 
-        microhabitats.add(new Microhabitat(calc_C_i(0, this.c_max, this.alpha, delta_x), scale, sigma));
+        microhabitats.add(new Microhabitat(calc_C_i(0, this.c_max, this.alpha, delta_x), scale, sigma, K, options.genotype_classes, mic_rand));
         microhabitats.get(0).setSurface();
         microhabitats.get(0).addARandomBacterium_x_N(5);
     }
@@ -42,10 +116,13 @@ class BioSystem {
     private int getN_deaths(){return n_deaths;}
     private int getN_replications(){return n_replications;}
     private int getN_immigrations(){return n_immigrations;}
+    int getN_sweeps(){return n_sweeps;}
+    int getN_rejected_sweeps(){return n_rejected_sweeps;}
 
-    private double getTimeElapsed(){return time_elapsed;}
+    double getTimeElapsed(){return time_elapsed;}
     private double getExit_time(){return exit_time;}
     private int getSystemSize(){return microhabitats.size();}
+    ArrayList<Microhabitat> getMicrohabitats(){return microhabitats;}
 
     private void setExit_time(double exit_time){this.exit_time = exit_time;}
 
@@ -73,26 +150,26 @@ class BioSystem {
         return thickness;
     }
 
-    private ArrayList<ArrayList<Double>> getMicrohabPopulations(){
-        ArrayList<ArrayList<Double>> mh_pops = new ArrayList<>();
-
-        /*for(Microhabitat m : microhabitats){
-            mh_pops.add(m.getPopulation());
-        }*/
-
-        for(Microhabitat m : microhabitats){
-            ArrayList<Double> mh_pop = new ArrayList<>();
-            for(Double geno : m.getPopulation()){
-                mh_pop.add(geno);
-            }
-            mh_pops.add(mh_pop);
-        }
 
-        return mh_pops;
-    }
 
 
 
+    static BioSystem withBiofilm(ParameterPoint point, int thickness, double fill, RunOptions options){
+        //a system part way through a run, for BenchmarkCases and HybridValidation: thickness biofilm microhabs, each filled with fill*K
+        //bacteria, plus an immigration zone at the same fill. drawn from runID 0 of options' master seed
+        BioSystem bs = new BioSystem(point, 0, options);
+        bs.microhabitats.clear();
+        for(int i = 0; i <= thickness; i++){
+            Microhabitat m = new Microhabitat(calc_C_i(i, bs.c_max, bs.alpha, bs.delta_x), bs.scale, bs.sigma, bs.K, options.genotype_classes, bs.mic_rand);
+            if(i == 0) m.setSurface();
+            if(i < thickness) m.setBiofilm_region();
+            else m.setImmigration_zone(true);
+            m.addARandomBacterium_x_N((int)(fill*bs.K));
+            bs.microhabitats.add(m);
+        }
+        bs.immigration_index = thickness;
+        return bs;
+    }
 
 
     private void immigrate(int mh_index, int n_immigrants){
@@ -102,7 +179,7 @@ class BioSystem {
 
     private void migrate(ArrayList<Microhabitat> microhabs, int mh_index, int bac_index){
 
-        double migrating_bac = microhabs.get(mh_index).getPopulation().get(bac_index);
+        double migrating_bac = microhabs.get(mh_index).getMIC(bac_index);
         microhabs.get(mh_index).removeABacterium(bac_index);
 
         if(microhabs.get(mh_index).isSurface()){
@@ -112,7 +189,7 @@ class BioSystem {
             microhabs.get(mh_index-1).addABacterium(migrating_bac);
 
         }else{
-            if(rand.nextBoolean()){
+            if(migration_rand.nextBoolean()){
                 microhabs.get(mh_index+1).addABacterium(migrating_bac);
             }else{
                 microhabs.get(mh_index-1).addABacterium(migrating_bac);
@@ -132,23 +209,87 @@ class BioSystem {
             microhabitats.get(immigration_index).setImmigration_zone(false);
 
             int i = microhabitats.size();
-            microhabitats.add(new Microhabitat(BioSystem.calc_C_i(i, c_max, alpha, delta_x), scale, sigma));
+            microhabitats.add(new Microhabitat(BioSystem.calc_C_i(i, c_max, alpha, delta_x), scale, sigma, K, options.genotype_classes, mic_rand));
             immigration_index = i;
             microhabitats.get(immigration_index).setImmigration_zone(true);
+            submitEvent(StateCapture.Kind.MICROHAB_ADDED);
         }
 
         //this stops sims going onn unnecessarily too long. if the biofilm reaches the thickness limit then we record the
         //time this happened at and move on
         if(getSystemSize()==thickness_limit){
+            submitEvent(StateCapture.Kind.THICKNESS_LIMIT);
             exit_time = time_elapsed;
             time_elapsed = 9e9; //this way the time elapsed is now way above the duration value, so the simulation will stop
         }
     }
 
 
-    private void performAction(){
+    private double selectTauStep(){
+        //Cao-Gillespie style choice of the leap, made once from the current rates before the sweep.
+        //two bounds are used: the leap condition, which keeps the expected change and spread of each microhab
+        //population within leap_epsilon of its size, and a bound on rejections, since a sweep is thrown away when
+        //any bacterium draws 2+ migrations, detachments or deaths. P(2+ events) ~ (a*tau)^2/2 per bacterium and
+        //channel, so the expected no. of rejecting bacteria is kept below rejection_tolerance. the categorical scheme
+        //never rejects, so only the leap condition applies to it.
+        double tau_step = tau;
+        double sum_sq_rates = 0.;
+
+        for(int mh_index = 0; mh_index < microhabitats.size(); mh_index++){
+            Microhabitat m = microhabitats.get(mh_index);
+            int mh_pop = m.getN();
+            if(mh_pop == 0) continue;
+
+            double mig = m.migrate_rate();
+            double det = (mh_index == immigration_index) ? deterioration_rate : 0.;
+            double max_death = 0.;
+            double drift = -det*mh_pop, spread = det*mh_pop;
+
+            //with genotype classes each rate is shared by a whole class
+            int n_rates = m.hasGenotypeClasses() ? m.getN_classes() : mh_pop;
+            double crowding = m.crowdingFactor();
+            for(int index = 0; index < n_rates; index++){
+                double g_or_d_rate = m.replicationOrDeathRate(index, crowding);
+                int multiplicity = m.hasGenotypeClasses() ? m.getClassCount(index) : 1;
+                drift += multiplicity*g_or_d_rate;
+                spread += multiplicity*Math.abs(g_or_d_rate);
+                if(-g_or_d_rate > max_death) max_death = -g_or_d_rate;
+            }
+
+            sum_sq_rates += mh_pop*(mig*mig + det*det + max_death*max_death);
+
+            double allowed_change = Math.max(options.leap_epsilon*mh_pop, 1.);
+            if(drift != 0.) tau_step = Math.min(tau_step, allowed_change/Math.abs(drift));
+            if(spread != 0.) tau_step = Math.min(tau_step, allowed_change*allowed_change/spread);
+        }
+
+        boolean rejects = options.leaping_scheme == RunOptions.LeapingScheme.POISSON;
+        if(rejects && sum_sq_rates > 0.) tau_step = Math.min(tau_step, Math.sqrt(2.*options.rejection_tolerance/sum_sq_rates));
+
+        return tau_step;
+    }
 
-        double tau_step = tau; //tau used for tau leaping time increment
+
+    void performAction(){
+        performAction(Double.POSITIVE_INFINITY);
+    }
+
+    void performAction(double until){
+        //one step, which never goes past until. a step that's cut short to reach it leaves the time at exactly until,
+        //so observers asking for a capture at that time get the state as it is then
+
+        if(options.engine == RunOptions.Engine.GILLESPIE){
+            performGillespieEvent(until);
+            return;
+        }
+
+        double tau_step = options.adaptive_tau ? selectTauStep() : tau; //tau used for tau leaping time increment
+        tau_step = Math.min(tau_step, until - time_elapsed);
+
+        if(options.genotype_classes){
+            performActionGenotypeClasses(tau_step, until);
+            return;
+        }
 
         int system_size = microhabitats.size(); //this is all the microhabs in the system
         int[][] replication_allocations;
@@ -160,6 +301,7 @@ class BioSystem {
 
         whileloop:
         while(true){
+            n_sweeps++;
             replication_allocations = new int[system_size][];
             death_allocations = new int[system_size][];
             migration_allocations = new int[system_size][];
@@ -167,65 +309,25 @@ class BioSystem {
             detachment_allocations = new int[microhabitats.get(immigration_index).getN()];
 
             for(int mh_index = 0; mh_index < system_size; mh_index++){
-                int mh_pop = microhabitats.get(mh_index).getN();
+                Microhabitat m = microhabitats.get(mh_index);
+                int mh_pop = m.getN();
                 int[] n_replications = new int[mh_pop];
                 int[] n_deaths = new int[mh_pop];
                 int[] n_migrations = new int[mh_pop];
 
-                for(int bac_index = 0; bac_index < mh_pop; bac_index++){
-
-                    ////////// MIGRATIONS //////////////////////
-                    n_migrations[bac_index] = new PoissonDistribution(microhabitats.get(mh_index).migrate_rate()*tau_step).sample();
-
-                    if(n_migrations[bac_index] > 1){
-                        tau_step /= 2.;
-                        continue whileloop;
-                    }
-                    ////////////////////////////////////////////
-
-                    ///////////// DETACHMENTS /////////////////////////
-                    if(mh_index == immigration_index){
-                        detachment_allocations[bac_index] = new PoissonDistribution(deterioration_rate*tau_step).sample();
-
-                        if(detachment_allocations[bac_index] > 1){
-                            tau_step /= 2.;
-                            continue whileloop;
-                        }
-                        //if a bacteria is detaching then it can't migrate
-                        if(detachment_allocations[bac_index] != 0){
-                            n_migrations[bac_index] = 0;
-                        }
-                    }
-                    ////////////////////////////////////////////////////////
-
-                    ////////////////// REPLICATIONS AND DEATHS ///////////////////////////
-                    double g_or_d_rate = microhabitats.get(mh_index).replicationOrDeathRate(bac_index);
-
-                    if(g_or_d_rate == 0.){
-
-                        n_replications[bac_index] = 0;
-                        n_deaths[bac_index] = 0;
-
-                    }else if(g_or_d_rate > 0){
-
-                        n_replications[bac_index] = new PoissonDistribution(g_or_d_rate*tau_step).sample();
-                        n_deaths[bac_index] = 0;
-
-                    }else{
-                        n_replications[bac_index] = 0;
-                        n_deaths[bac_index] = new PoissonDistribution(Math.abs(g_or_d_rate)*tau_step).sample();
-
-                        if(n_deaths[bac_index] > 1){
-                            tau_step /= 2.;
-                            continue whileloop;
-                        }
-                        //if a death is occurring, then that bacteria can't migrate or detach
-                        if(n_deaths[bac_index] !=0) {
-                            n_migrations[bac_index] = 0;
-                            if(mh_index == immigration_index) detachment_allocations[bac_index] = 0;
-                        }
-                    }
-                    /////////////////////////////////////////////////////////////////////////
+                //a bacterium can migrate, detach or die at most once per step. with poisson draws, the sweep is
+                //otherwise redone with half the timestep, categorical draws give each bacterium one event at most
+                int[] n_detachments = (mh_index == immigration_index) ? detachment_allocations : null;
+                if(options.leaping_scheme == RunOptions.LeapingScheme.CATEGORICAL){
+                    //with a single microhabitat there's nowhere to migrate to, so migration mustn't take up a bacterium's one event
+                    double mig_rate = (system_size > 1) ? m.migrate_rate() : 0.;
+                    event_batch.sampleCategorical(m, m.crowdingFactor(), mig_rate, deterioration_rate, tau_step,
+                            n_replications, n_deaths, n_migrations, n_detachments);
+                }else if(!event_batch.sample(m, m.crowdingFactor(), m.migrate_rate()*tau_step, deterioration_rate*tau_step, tau_step,
+                        n_replications, n_deaths, n_migrations, n_detachments)){
+                    tau_step /= 2.;
+                    n_rejected_sweeps++;
+                    continue whileloop;
                 }
 
                 replication_allocations[mh_index] = n_replications;
@@ -235,11 +337,14 @@ class BioSystem {
             }
 
 
-            n_immigrants = new PoissonDistribution(immigration_rate*tau_step).sample();
+            n_immigrants = immigration_poisson.sample(immigration_rate*tau_step);
             break;
         }
 
 
+        //microhabitats use swap-with-last removal, so bacteria are processed from the back of each microhab.
+        //anything at or beyond bac_index is then either already processed or a newcomer from this step
+        //(replica, migrant), so whatever gets swapped into a removed slot is never visited twice.
         for(int mh_index = 0; mh_index < system_size; mh_index++){
             for(int bac_index = original_popsizes[mh_index]-1; bac_index >= 0; bac_index--){
 
@@ -269,46 +374,428 @@ class BioSystem {
         immigrate(immigration_index, n_immigrants);
         n_immigrations += n_immigrants;
         updateBiofilmSize();
-        time_elapsed += tau_step;
+        advanceTime(tau_step, until);
     }
 
 
+    private void advanceTime(double step, double until){
+        //a step of exactly until - time_elapsed lands on until itself, rather than within rounding of it
+        time_elapsed = (step == until - time_elapsed) ? until : time_elapsed + step;
+    }
 
 
+    private void performActionGenotypeClasses(double tau_step, double until){
+        //same events as performAction, but sampled per (MIC, count) class rather than per bacterium, so the cost
+        //scales with the no. of distinct genotypes. each bacterium has at most one death, detachment or migration
+        //per step, with probability 1 - exp(-rate*tau), so no sweep is ever rejected. replications are unbounded
+        //as in performAction, and the per-bacterium poissons of a class sum to a single poisson.
+        //precedence matches performAction: death beats detachment, which beats migration.
+        n_sweeps++;
+
+        int system_size = microhabitats.size();
+        int[][] replication_allocations = new int[system_size][];
+        int[][] death_allocations = new int[system_size][];
+        int[][] detachment_allocations = new int[system_size][];
+        int[][] left_migration_allocations = new int[system_size][];
+        int[][] right_migration_allocations = new int[system_size][];
+        int[] original_n_classes = new int[system_size];
+
+        boolean at_until = (tau_step == until - time_elapsed); //observers may be about to look, so nothing's left behind
+        boolean[] waiting = new boolean[system_size];
+        for(int mh_index = 0; mh_index < system_size; mh_index++){
+            Microhabitat m = microhabitats.get(mh_index);
+
+            double dt = tau_step;
+            boolean langevin = false;
+            if(options.hybrid){
+                boolean saturated = isSaturated(m);
+                if(saturated || hybrid_pending[mh_index] > 0.){
+                    if(hybrid_pending[mh_index] == 0.) hybrid_target[mh_index] = coarseStep(m, system_size);
+                    hybrid_pending[mh_index] += tau_step;
+                    //a microhab that's no longer saturated catches up on its pending time now, and is exact from then on
+                    if(saturated && !at_until && hybrid_pending[mh_index] < hybrid_target[mh_index]){
+                        waiting[mh_index] = true; //no events, and original_n_classes of 0 keeps it out of the update
+                        continue;
+                    }
+                    dt = hybrid_pending[mh_index];
+                    hybrid_pending[mh_index] = 0.;
+                    langevin = true;
+                }
+            }
 
-    static void getEventCountersAndRunPopulations(int nReps, double scale, double sigma, String folderID){
-        long startTime = System.currentTimeMillis();
+            int n_classes = m.getN_classes();
+            int[] n_replications = new int[n_classes];
+            int[] n_deaths = new int[n_classes];
+            int[] n_detachments = new int[n_classes];
+            int[] n_left = new int[n_classes];
+            int[] n_right = new int[n_classes];
+            replication_allocations[mh_index] = n_replications;
+            death_allocations[mh_index] = n_deaths;
+            detachment_allocations[mh_index] = n_detachments;
+            left_migration_allocations[mh_index] = n_left;
+            right_migration_allocations[mh_index] = n_right;
+            original_n_classes[mh_index] = n_classes;
+
+            double p_migrate = (system_size > 1) ? 1. - Math.exp(-m.migrate_rate()*dt) : 0.;
+            double p_detach = (mh_index == immigration_index) ? 1. - Math.exp(-deterioration_rate*dt) : 0.;
+            double crowding = m.crowdingFactor();
+
+            for(int class_index = 0; class_index < n_classes; class_index++){
+                int class_count = m.getClassCount(class_index);
+                int survivors = class_count;
+
+                double g_or_d_rate = m.replicationOrDeathRate(class_index, crowding);
+                if(g_or_d_rate > 0.){
+                    double mean = class_count*g_or_d_rate*dt;
+                    n_replications[class_index] = langevin ? poissonOrGaussian(mean) : poisson.sampleUncached(mean);
+                }else if(g_or_d_rate < 0.){
+                    double p_death = 1. - Math.exp(g_or_d_rate*dt);
+                    n_deaths[class_index] = langevin ? binomialOrGaussian(class_count, p_death) : binomial.sample(class_count, p_death);
+                    survivors -= n_deaths[class_index];
+                }
+
+                n_detachments[class_index] = langevin ? binomialOrGaussian(survivors, p_detach) : binomial.sample(survivors, p_detach);
+                survivors -= n_detachments[class_index];
+
+                int n_migrations = langevin ? binomialOrGaussian(survivors, p_migrate, migration_binomial, migration_rand)
+                        : migration_binomial.sample(survivors, p_migrate);
+                if(m.isSurface()){
+                    n_right[class_index] = n_migrations;
+                }else if(m.isImmigration_zone()){
+                    n_left[class_index] = n_migrations;
+                }else{
+                    n_right[class_index] = langevin ? binomialOrGaussian(n_migrations, 0.5, migration_binomial, migration_rand)
+                            : migration_binomial.sample(n_migrations, 0.5);
+                    n_left[class_index] = n_migrations - n_right[class_index];
+                }
+            }
+        }
+
+        int n_immigrants = immigration_poisson.sample(immigration_rate*tau_step);
+
+        //emptied classes aren't removed until every microhab is done, so the class indices above stay valid.
+        //migrants only ever join existing classes or new ones past original_n_classes.
+        for(int mh_index = 0; mh_index < system_size; mh_index++){
+            Microhabitat m = microhabitats.get(mh_index);
+
+            for(int class_index = 0; class_index < original_n_classes[mh_index]; class_index++){
+                double MIC = m.getMIC(class_index);
+                int n_left = left_migration_allocations[mh_index][class_index];
+                int n_right = right_migration_allocations[mh_index][class_index];
+                int n_lost = death_allocations[mh_index][class_index] + detachment_allocations[mh_index][class_index] + n_left + n_right;
+
+                m.changeClassCount(class_index, replication_allocations[mh_index][class_index] - n_lost);
+                if(n_left > 0) microhabitats.get(mh_index-1).addBacteria(MIC, n_left);
+                if(n_right > 0) microhabitats.get(mh_index+1).addBacteria(MIC, n_right);
+
+                n_replications += replication_allocations[mh_index][class_index];
+                n_deaths += death_allocations[mh_index][class_index];
+                n_detachments += detachment_allocations[mh_index][class_index];
+            }
+        }
+
+        //a waiting microhab only gains bacteria, so has no empty classes to remove
+        for(int mh_index = 0; mh_index < system_size; mh_index++){
+            if(!waiting[mh_index]) microhabitats.get(mh_index).removeEmptyClasses();
+        }
+
+        immigrate(immigration_index, n_immigrants);
+        n_immigrations += n_immigrants;
+        updateBiofilmSize();
+        advanceTime(tau_step, until);
+    }
+
+
+
+
+
+    ////////////////// HYBRID ENGINE ///////////////////////////
+    //with options.hybrid, deep biofilm microhabs sitting near K are taken off the per-step path. a saturated microhab
+    //(biofilm region, not the surface or immigration zone, N >= hybrid_min_fill*K) collects tau steps until they add
+    //up to a coarse step, then has all of them sampled in one go with the rates as they are then. the coarse step is
+    //set by a leap condition, hybrid_leap_epsilon*N expected events (mostly migrations), as a longer one lets the
+    //microhab and its neighbours drift past K between updates and the crowding term then overshoots with deaths.
+    //event counts whose variance is at least langevin_min_variance (classes with many bacteria or high rates) are
+    //drawn from the chemical langevin approximation, a rounded gaussian with the same mean and variance, anything
+    //smaller is still drawn exactly. in between updates, the microhab costs one comparison per step, while still
+    //taking in migrants from its neighbours as they arrive.
+    //a microhab that drops below the threshold catches up on its pending time and goes back to exact steps, and
+    //every microhab catches up at a step ending on an observation time, so captures never see stale layers.
+
+    private boolean isSaturated(Microhabitat m){
+        return m.isBiofilm_region() && !m.isSurface() && !m.isImmigration_zone() && m.getN() >= options.hybrid_min_fill*K;
+    }
+
+    private double coarseStep(Microhabitat m, int system_size){
+        //long enough for hybrid_leap_epsilon*N events at the current rates, but no more than hybrid_max_steps tau steps
+        double crowding = m.crowdingFactor();
+        double total_rate = (system_size > 1) ? m.getN()*m.migrate_rate() : 0.;
+        for(int j = 0; j < m.getN_classes(); j++){
+            total_rate += m.getClassCount(j)*Math.abs(m.replicationOrDeathRate(j, crowding));
+        }
+        double max_step = options.hybrid_max_steps*tau;
+        return (total_rate > 0.) ? Math.min(max_step, options.hybrid_leap_epsilon*m.getN()/total_rate) : max_step;
+    }
+
+    private int poissonOrGaussian(double mean){
+        if(mean < options.langevin_min_variance) return poisson.sampleUncached(mean);
+        return (int)Math.max(0L, Math.round(mean + Math.sqrt(mean)*rand.nextGaussian()));
+    }
+
+    private int binomialOrGaussian(int n, double p){
+        return binomialOrGaussian(n, p, binomial, rand);
+    }
+
+    private int binomialOrGaussian(int n, double p, BinomialSampler sampler, Xoshiro256StarStar gaussians){
+        //sampler and gaussians draw from the same stream, the migration one for migrations
+        double mean = n*p, variance = mean*(1. - p);
+        if(variance < options.langevin_min_variance) return sampler.sample(n, p);
+        return (int)Math.max(0L, Math.min(n, Math.round(mean + Math.sqrt(variance)*gaussians.nextGaussian())));
+    }
+
+
+
+
+
+    ////////////////// GILLESPIE ENGINE ///////////////////////////
+    private void initialiseGillespie(){
+        growth_trees = new ArrayList<>();
+        death_trees = new ArrayList<>();
+        mh_propensities = new FenwickTree(thickness_limit);
+
+        for(int mh_index = 0; mh_index < microhabitats.size(); mh_index++){
+            addGillespieTrees(mh_index);
+        }
+        refreshAllPropensities();
+    }
+
+    private void addGillespieTrees(int mh_index){
+        Microhabitat m = microhabitats.get(mh_index);
+        growth_trees.add(new FenwickTree(m.getK()));
+        death_trees.add(new FenwickTree(m.getK()));
+        for(int bac_index = 0; bac_index < m.getN(); bac_index++){
+            setBacteriumWeights(mh_index, bac_index);
+        }
+    }
+
+    private void setBacteriumWeights(int mh_index, int bac_index){
+        double phi_c_scaled = microhabitats.get(mh_index).phi_c_scaled(bac_index);
+        growth_trees.get(mh_index).set(bac_index, Math.max(phi_c_scaled, 0.));
+        death_trees.get(mh_index).set(bac_index, Math.max(-phi_c_scaled, 0.));
+    }
+
+    private void gillespieAdd(int mh_index, double MIC){
+        microhabitats.get(mh_index).addABacterium(MIC);
+        setBacteriumWeights(mh_index, microhabitats.get(mh_index).getN()-1);
+    }
+
+    private void gillespieRemove(int mh_index, int bac_index){
+        //mirrors the swap-with-last removal in the microhab
+        int last = microhabitats.get(mh_index).getN()-1;
+        FenwickTree growth = growth_trees.get(mh_index), death = death_trees.get(mh_index);
+
+        microhabitats.get(mh_index).removeABacterium(bac_index);
+        if(bac_index != last){
+            growth.set(bac_index, growth.get(last));
+            death.set(bac_index, death.get(last));
+        }
+        growth.set(last, 0.);
+        death.set(last, 0.);
+    }
+
+    private void refreshPropensity(int mh_index){
+        Microhabitat m = microhabitats.get(mh_index);
+        int N = m.getN();
+        double migration = (microhabitats.size() > 1) ? m.migrate_rate()*N : 0.;
+        double detachment = (mh_index == immigration_index) ? deterioration_rate*N : 0.;
+        double growth = growth_trees.get(mh_index).total()*Math.abs(m.crowdingFactor());
+
+        mh_propensities.set(mh_index, migration + detachment + growth + death_trees.get(mh_index).total());
+    }
+
+    private void refreshAllPropensities(){
+        for(int mh_index = 0; mh_index < microhabitats.size(); mh_index++){
+            refreshPropensity(mh_index);
+        }
+    }
+
+    private static int clampIndex(int index, int N){
+        //sum-tree lookups can land one past the end when rounding puts the target on the total
+        return Math.min(index, N-1);
+    }
 
-        /*int nSections = 9; //number of sections the reps will be divided into, to avoid using loadsa resources
-        int nRuns = nReps/nSections; //number of runs in each section
-        int nMeasurements = 100; //no. of measurements - todo change stuff back for big runs*/
 
-        int n_runs_per_section = 20;
-        int n_sections = nReps/n_runs_per_section;
-        int nMeasurements = 100;
+    private void performGillespieEvent(double until){
+        //exact SSA: one event per call, chosen with O(log N) lookups. as the process is memoryless, if the next
+        //event would come later than tau (or until) we can just advance time by that much and draw again next call.
+        //this keeps the driver's time-based measurements working exactly as they do with tau leaping.
+        if(growth_trees == null) initialiseGillespie();
 
-        double duration = 25.*7.*24.; //25 week duration
-        //double duration = 8.;
+        double total_propensity = mh_propensities.total() + immigration_rate;
+        double dt = -Math.log(1. - rand.nextDouble())/total_propensity;
 
-        String results_directory_name = "all_run_populations"+folderID;
-        String[] headers = new String[]{"run_ID", "bf thickness", "n_deaths", "n_detachments", "n_immigrations", "n_replications", "exit time"};
-        DataBox[] dataBoxes = new DataBox[nReps];
-        String event_counters_filename = "pyrithione-t="+String.valueOf(duration)+"-parallel-event_counters_sigma="+String.format("%.5f", sigma);
-        String mh_pops_over_time_filename = "pyrithione-t="+String.valueOf(duration)+"-sigma="+String.format("%.5f", sigma)+"-mh_pops-runID=";
+        double max_step = Math.min(tau, until - time_elapsed);
+        if(dt > max_step){
+            advanceTime(max_step, until);
+            return;
+        }
+        time_elapsed += dt;
+
+        double target = rand.nextDouble()*total_propensity;
+        int system_size = microhabitats.size();
+        int touched_origin = -1, touched_destination = -1;
+
+        if(target < immigration_rate){
+            Microhabitat m = microhabitats.get(immigration_index);
+            immigrate(immigration_index, 1);
+            setBacteriumWeights(immigration_index, m.getN()-1);
+            n_immigrations++;
+            touched_origin = immigration_index;
+
+        }else{
+            target -= immigration_rate;
+            int mh_index = Math.min(mh_propensities.find(target), system_size-1);
+            target -= mh_propensities.prefixSum(mh_index);
+
+            Microhabitat m = microhabitats.get(mh_index);
+            int N = m.getN();
+            double crowding = m.crowdingFactor();
+            double death = death_trees.get(mh_index).total();
+            double growth = growth_trees.get(mh_index).total()*Math.abs(crowding);
+            double detachment = (mh_index == immigration_index) ? deterioration_rate*N : 0.;
+            touched_origin = mh_index;
+
+            if(target < death){
+                gillespieRemove(mh_index, clampIndex(death_trees.get(mh_index).find(target), N));
+                n_deaths++;
+
+            }else if(target < death + growth){
+                int bac_index = clampIndex(growth_trees.get(mh_index).find((target - death)/Math.abs(crowding)), N);
+                if(crowding > 0.){
+                    gillespieAdd(mh_index, m.getMIC(bac_index));
+                    n_replications++;
+                }else{
+                    gillespieRemove(mh_index, bac_index);
+                    n_deaths++;
+                }
+
+            }else if(target < death + growth + detachment){
+                gillespieRemove(mh_index, rand.nextInt(N));
+                n_detachments++;
 
-        for(int j = 0; j < n_sections; j++){
-            System.out.println("section: "+j);
+            }else{
+                int bac_index = migration_rand.nextInt(N);
+                double MIC = m.getMIC(bac_index);
+                int destination;
+                if(m.isSurface()) destination = mh_index+1;
+                else if(m.isImmigration_zone()) destination = mh_index-1;
+                else destination = migration_rand.nextBoolean() ? mh_index+1 : mh_index-1;
+
+                gillespieRemove(mh_index, bac_index);
+                gillespieAdd(destination, MIC);
+                touched_destination = destination;
+            }
+        }
+
+        updateBiofilmSize();
 
-            IntStream.range(j*n_runs_per_section, (j+1)*n_runs_per_section).parallel().forEach(i ->
-                    dataBoxes[i] = getEventCountersAndRunPops_Subroutine(duration, nMeasurements, i, scale, sigma));
+        if(microhabitats.size() != system_size){
+            //a new microhab changes the immigration zone and migration rates, so everything is refreshed
+            for(int mh_index = system_size; mh_index < microhabitats.size(); mh_index++){
+                addGillespieTrees(mh_index);
+            }
+            refreshAllPropensities();
+        }else{
+            refreshPropensity(touched_origin);
+            if(touched_destination >= 0) refreshPropensity(touched_destination);
         }
+    }
 
 
-        Toolbox.writeDataboxEventCountersToFile(results_directory_name, event_counters_filename, headers, dataBoxes);
 
-        for(int i = 0; i < dataBoxes.length; i++){
-            String run_filename = mh_pops_over_time_filename+String.valueOf(dataBoxes[i].getRunID());
-            Toolbox.writeDataboxMicrohabPopsToFile(results_directory_name, run_filename, dataBoxes[i]);
+
+
+    static void getEventCountersAndRunPopulations(int nReps, double scale, double sigma, String folderID){
+        getEventCountersAndRunPopulations(nReps, scale, sigma, folderID, new RunOptions());
+    }
+
+
+    static void getEventCountersAndRunPopulations(int nReps, double scale, double sigma, String folderID, RunOptions options){
+        getEventCountersAndRunPopulations(nReps, new ParameterPoint(scale, sigma).withLabel(folderID), options);
+    }
+
+
+    static void getEventCountersAndRunPopulations(int nReps, ParameterPoint point, RunOptions options){
+        ReplicateScheduler scheduler = new ReplicateScheduler(options);
+        try{
+            runEnsemble(nReps, point, options, scheduler, new EnsembleMetrics(options), null);
+        }finally{
+            scheduler.shutdown();
+        }
+    }
+
+
+    static boolean runEnsemble(int nReps, ParameterPoint point, RunOptions options, ReplicateScheduler scheduler,
+                               EnsembleMetrics metrics, ReplicateScheduler.StopCondition cancelled){
+        //an ensemble on a scheduler that may outlive it, as SimulationService's does. metrics are closed at the end.
+        //if cancelled is given and comes to hold, the runs in flight are abandoned and those already finished stay
+        //written, so the ensemble can be resumed later. returns false if it was cancelled
+        long startTime = System.currentTimeMillis();
+
+        //printed so that any single run of the ensemble can be reproduced with rerunReplicate
+        System.out.println("master seed: "+options.master_seed);
+
+        Checkpointer checkpointer = openCheckpointer(point, options);
+
+        //finished runs go straight to the writer, so at most max_in_flight runs plus the writer's queue are held at once.
+        //when resuming, the writer keeps the runs already in the event counters file, and only the rest are run
+        ResultWriter writer = openResultWriter(point, options, checkpointer);
+        HashSet<Integer> completed = writer.getCompletedRunIDs();
+        int[] runIDs = IntStream.range(0, nReps).filter(runID -> !completed.contains(runID)).toArray();
+        if(options.resume) System.out.println("resuming: "+completed.size()+" runs already complete, "+runIDs.length+" to go");
+
+        //with a stopping rule, nReps is the most runs that will be made
+        StoppingRule.Progress stopping = null;
+        if(options.stopping_rule != null){
+            stopping = options.stopping_rule.track(nReps);
+            stopping.addCompleted(writer.getCompletedEventCounters());
+        }
+        final StoppingRule.Progress progress = stopping;
+
+        ReplicateScheduler.StopCondition stop = null;
+        if(progress != null && cancelled != null) stop = () -> cancelled.reached() || progress.converged();
+        else if(progress != null) stop = progress::converged;
+        else if(cancelled != null) stop = cancelled;
+        try{
+            if(progress == null || !progress.converged()){
+                scheduler.runAll(runIDs,
+                        runID -> runReplicate(point, runID, options, checkpointer, metrics),
+                        (runID, dataBox) -> {
+                            writer.submit(dataBox);
+                            if(progress != null) progress.add(runID, dataBox.getEvent_counters());
+                        },
+                        stop);
+            }
+        }finally{
+            writer.close();
+            metrics.close();
+        }
+        if(cancelled != null && cancelled.reached()){
+            System.out.println("ensemble cancelled, finished runs are written and can be resumed");
+            return false;
+        }
+        if(progress != null){
+            System.out.println((progress.converged() ? "converged" : "run budget used up without converging")+"\t"+progress.summary());
+        }
+        if(options.antithetic_pairs){
+            //comparisons between points are made by ParameterSweep, this is the saving on the point's own means
+            VarianceReduction reduction = new VarianceReduction(Collections.singletonList(point), nReps, options);
+            try{
+                reduction.addCompleted(0, Toolbox.readEventCountersFile(resultsDirectoryName(point), eventCountersFilename(point)));
+            }catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+            reduction.write(resultsDirectoryName(point));
         }
 
 
@@ -316,50 +803,329 @@ class BioSystem {
         String diff = Toolbox.millisToShortDHMS(finishTime - startTime);
         System.out.println("results written to file");
         System.out.println("Time taken: "+diff);
+        return true;
+    }
+
+
 
+    static void rerunReplicate(int runID, double scale, double sigma, String folderID, RunOptions options){
+        rerunReplicate(runID, new ParameterPoint(scale, sigma).withLabel(folderID), options);
     }
 
 
+    static void rerunReplicate(int runID, ParameterPoint point, RunOptions options){
+        //re-runs one runID of a finished ensemble, which reproduces its population file exactly given the same
+        //master seed and options
+        DataBox dataBox = runReplicate(point, runID, options, null, null);
+        String run_filename = mhPopsFilename(run_duration, point.sigma)+String.valueOf(runID);
+        try{
+            Toolbox.writeDataboxMicrohabPopsToFile(resultsDirectoryName(point), run_filename, dataBox);
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
 
-    private static DataBox getEventCountersAndRunPops_Subroutine(double duration, int nMeasurements, int runID, double scale, double sigma){
 
-        int K = 120;
-        double c_max = 10., alpha = 0.01;
-        double interval = duration/nMeasurements;
-        boolean alreadyRecorded = false;
+    ////////////////// ENSEMBLE OUTPUT ///////////////////////////
+    //shared by getEventCountersAndRunPopulations and ParameterSweep, so that a point run either way ends up in the
+    //same files
 
-        BioSystem bs = new BioSystem(alpha, c_max, scale, sigma);
-        ArrayList<ArrayList<ArrayList<Double>>> mh_pops_over_time = new ArrayList<>();
-        ArrayList<Double> times = new ArrayList<>();
+    static final String[] event_counter_headers = new String[]{"run_ID", "bf thickness", "n_deaths", "n_detachments", "n_immigrations", "n_replications", "exit time"};
 
-        while(bs.time_elapsed <= duration+0.02*interval){
+    static String resultsDirectoryName(ParameterPoint point){
+        return "all_run_populations"+point.getLabel();
+    }
 
-            if((bs.getTimeElapsed()%interval <= 0.02*interval) && !alreadyRecorded){
+    private static String mhPopsFilename(double duration, double sigma){
+        return "pyrithione-t="+String.valueOf(duration)+"-sigma="+String.format("%.5f", sigma)+"-mh_pops-runID=";
+    }
 
-                int max_poss_pop = bs.getSystemSize()*K;
-                System.out.println("runID: "+runID+"\tt: "+bs.getTimeElapsed()+"\tpop size: "+bs.getTotalN()+"/"+max_poss_pop+"\tbf_edge: "+bs.getBiofilmEdge());
-                alreadyRecorded = true;
+    private static String eventCountersFilename(double duration, double sigma){
+        return "pyrithione-t="+String.valueOf(duration)+"-parallel-event_counters_sigma="+String.format("%.5f", sigma);
+    }
+
+    static Checkpointer openCheckpointer(ParameterPoint point, RunOptions options){
+        if(options.checkpoint_interval <= 0.) return null;
+        return new Checkpointer(resultsDirectoryName(point)+"/checkpoints", options.checkpoint_interval);
+    }
+
+    static String eventCountersFilename(ParameterPoint point){
+        return eventCountersFilename(run_duration, point.sigma);
+    }
+
+    static ResultWriter openResultWriter(ParameterPoint point, RunOptions options, Checkpointer checkpointer){
+        return openResultWriter(point, options, checkpointer, resultsDirectoryName(point), eventCountersFilename(point));
+    }
+
+    static ResultWriter openResultWriter(ParameterPoint point, RunOptions options, Checkpointer checkpointer, String directoryName, String event_counters_filename){
+        //writes the event counters and population files into directoryName rather than the results directory, for
+        //output that's moved into place later (ShardedEnsemble). the population files keep their usual names
+        return new ResultWriter(directoryName, event_counters_filename, event_counter_headers,
+                mhPopsFilename(run_duration, point.sigma), options, checkpointer);
+    }
+
+    static DataBox runReplicate(ParameterPoint point, int runID, RunOptions options, Checkpointer checkpointer, EnsembleMetrics metrics){
+        return getEventCountersAndRunPops_Subroutine(run_duration, n_measurements, runID, point, options, checkpointer, metrics);
+    }
 
-                times.add(bs.getTimeElapsed());
-                mh_pops_over_time.add(bs.getMicrohabPopulations()); //added in now
 
-                /*ArrayList<ArrayList<Double>> mh_pops = bs.getMicrohabPopulations();
-                ArrayList<ArrayList<Double>> measured_mh_pops = new ArrayList<>();
-                for(ArrayList<Double> mhp : mh_pops){
-                    measured_mh_pops.add(new ArrayList<>(mhp));
+    private static DataBox getEventCountersAndRunPops_Subroutine(double duration, int nMeasurements, int runID, ParameterPoint point, RunOptions options, Checkpointer checkpointer, EnsembleMetrics metrics){
+
+        BioSystem bs;
+        SnapshotStore snapshots = new SnapshotStore(options.binary_snapshots && options.snapshot_floats);
+        //in summary mode the full snapshots aren't kept, the summaries are taken at their own, finer, spacing
+        MICSummary summary = options.mic_summaries ? new MICSummary(options) : null;
+
+        byte[] checkpoint = (checkpointer != null && options.resume) ? checkpointer.load(runID) : null;
+        if(checkpoint != null){
+            SnapshotStore[] restored_snapshots = new SnapshotStore[1];
+            MICSummary[] restored_summary = new MICSummary[1];
+            bs = restoreRun(checkpoint, runID, point, options, restored_snapshots, restored_summary);
+            snapshots = restored_snapshots[0];
+            if(summary != null && restored_summary[0] != null) summary = restored_summary[0];
+            System.out.println("runID: "+runID+"\tresumed from checkpoint at t: "+bs.getTimeElapsed());
+        }else{
+            bs = new BioSystem(point, runID, options);
+        }
+
+        ArrayList<Observer> observers = new ArrayList<>();
+        double[] measurement_times = Observer.evenlySpaced(duration, nMeasurements);
+        if(summary == null){
+            observers.add(new SnapshotObserver(measurement_times, snapshots));
+        }else{
+            observers.add(new MICSummaryObserver(Observer.evenlySpaced(duration, options.n_summary_measurements), summary));
+        }
+        if(options.log_measurements) observers.add(measurementLogger(measurement_times));
+        for(ObserverFactory factory : options.observers) observers.add(factory.create(point, runID, duration));
+        //a restored run has already taken the measurements at its current time
+        ObserverPipeline pipeline = new ObserverPipeline(runID, observers, bs.time_elapsed, checkpoint == null);
+        bs.observeEvents(pipeline, runID);
+
+        long step = 0, last_checkpoint = System.nanoTime();
+        EnsembleMetrics.RunMetrics run_metrics = (metrics != null) ? metrics.runStarted(point, runID) : null;
+        Thread thread = Thread.currentThread();
+
+        try{
+            submitDueCaptures(bs, runID, pipeline);
+            while(bs.time_elapsed < duration){
+
+                double time_before = bs.time_elapsed;
+                bs.performAction(Math.min(pipeline.nextTime(), duration));
+                //no measurements once the thickness limit has sent the time off to 9e9
+                if(bs.exit_time == 0.) submitDueCaptures(bs, runID, pipeline);
+
+                //the step that hits the thickness limit isn't a real step size either
+                if(run_metrics != null && run_metrics.recordStep(bs.exit_time == 0. ? bs.time_elapsed - time_before : bs.tau)){
+                    publishMetrics(run_metrics, bs);
+                }
+
+                //a run cancelled by the scheduler stops here, leaving any checkpoint it's made for a later resume
+                if((++step & cancellation_check_mask) == 0 && thread.isInterrupted()){
+                    throw new CancellationException("runID "+runID+" cancelled at t: "+bs.time_elapsed);
                 }
-                mh_pops_over_time.add(measured_mh_pops);*/
 
+                if(checkpointer != null && checkpointer.isDue(step, last_checkpoint)){
+                    //the measurements are only read once the observers have caught up with them
+                    pipeline.awaitIdle();
+                    checkpointer.save(runID, captureRun(bs, runID, snapshots, summary));
+                    last_checkpoint = System.nanoTime();
+                }
             }
-            if(bs.getTimeElapsed()%interval >= 0.1*interval) alreadyRecorded = false;
+            pipeline.finish(bs.captureState(StateCapture.Kind.RUN_END, runID, pipeline.allObservers()));
+        }catch(RuntimeException | Error e){
+            pipeline.abort();
+            if(run_metrics != null) metrics.runAbandoned(run_metrics);
+            throw e;
+        }
 
-            bs.performAction();
+        if(run_metrics != null){
+            publishMetrics(run_metrics, bs);
+            metrics.runFinished(run_metrics);
         }
         if((int)bs.exit_time == 0) bs.exit_time = duration;
+        if(options.log_measurements){
+            System.out.println("runID: "+runID+"\tsweeps: "+bs.getN_sweeps()+"\trejected sweeps: "+bs.getN_rejected_sweeps()+"\tadaptive tau: "+options.adaptive_tau);
+        }
 
         int[] event_counters = new int[]{runID, bs.getBiofilmThickness(), bs.getN_deaths(), bs.getN_detachments(), bs.getN_immigrations(), bs.getN_replications(), (int)bs.getExit_time()};
 
-        return new DataBox(runID, event_counters, times, mh_pops_over_time);
+        if(summary != null) return new DataBox(runID, event_counters, summary);
+        return new DataBox(runID, event_counters, snapshots);
+    }
+
+
+    void observeEvents(ObserverPipeline pipeline, int runID){
+        this.event_observers = pipeline;
+        this.event_runID = runID;
+    }
+
+    private void submitEvent(StateCapture.Kind kind){
+        if(event_observers == null) return;
+        long wanted = event_observers.wantsEvent(kind);
+        if(wanted != 0) event_observers.submit(captureState(kind, event_runID, wanted));
+    }
+
+    private static void submitDueCaptures(BioSystem bs, int runID, ObserverPipeline pipeline){
+        long due = pipeline.dueAt(bs.time_elapsed);
+        if(due != 0) pipeline.submit(bs.captureState(StateCapture.Kind.SCHEDULED, runID, due));
+    }
+
+    StateCapture captureState(StateCapture.Kind kind, int runID, long observer_mask){
+        int[] events = {n_deaths, n_detachments, n_immigrations, n_replications};
+        return new StateCapture(kind, runID, time_elapsed, observer_mask, events, getBiofilmThickness(), getBiofilmEdge(),
+                K, microhabitats, options.genotype_classes);
+    }
+
+    private static Observer measurementLogger(double[] measurement_times){
+        //the line each run used to print at every measurement
+        return new Observer(){
+            public double[] observationTimes(){return measurement_times;}
+            public void observe(StateCapture capture){
+                int max_poss_pop = capture.getN_microhabs()*capture.K;
+                System.out.println("runID: "+capture.runID+"\tt: "+capture.time+"\tpop size: "+capture.getTotalN()+"/"+max_poss_pop+"\tbf_edge: "+capture.biofilm_edge);
+            }
+        };
+    }
+
+
+    private static void publishMetrics(EnsembleMetrics.RunMetrics run_metrics, BioSystem bs){
+        long events = (long)bs.n_deaths + bs.n_detachments + bs.n_immigrations + bs.n_replications;
+        double time = (bs.exit_time > 0.) ? bs.exit_time : bs.time_elapsed;
+        run_metrics.publish(bs.n_rejected_sweeps, events, time, bs.getBiofilmThickness());
+    }
+
+
+    ////////////////// CHECKPOINTS ///////////////////////////
+    private static final int checkpoint_magic = 0x5059434B; //"PYCK"
+    private static final int checkpoint_version = 7;
+
+    private static byte[] captureRun(BioSystem bs, int runID, SnapshotStore snapshots, MICSummary summary){
+        //serialises everything a run needs to carry on exactly where it is: the system, its generator and the
+        //measurements taken so far. runs on the simulation thread, so it only fills a byte array
+        try{
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(checkpoint_magic);
+            out.writeInt(checkpoint_version);
+            out.writeInt(runID);
+            out.writeLong(bs.options.master_seed);
+            out.writeBoolean(bs.options.common_random_numbers);
+            out.writeBoolean(bs.options.antithetic_pairs);
+
+            out.writeDouble(bs.alpha);
+            out.writeDouble(bs.c_max);
+            out.writeDouble(bs.scale);
+            out.writeDouble(bs.sigma);
+            out.writeInt(bs.K);
+            out.writeDouble(bs.deterioration_rate);
+            out.writeDouble(bs.immigration_rate);
+            out.writeDouble(bs.time_elapsed);
+            out.writeDouble(bs.exit_time);
+            out.writeInt(bs.immigration_index);
+            out.writeInt(bs.n_detachments);
+            out.writeInt(bs.n_deaths);
+            out.writeInt(bs.n_replications);
+            out.writeInt(bs.n_immigrations);
+            out.writeInt(bs.n_sweeps);
+            out.writeInt(bs.n_rejected_sweeps);
+            for(long word : bs.rand.getState()) out.writeLong(word);
+            if(bs.options.common_random_numbers){
+                for(Xoshiro256StarStar stream : new Xoshiro256StarStar[]{bs.immigration_rand, bs.migration_rand, bs.mic_rand}){
+                    for(long word : stream.getState()) out.writeLong(word);
+                }
+            }
+            for(int i = 0; i < bs.thickness_limit; i++){
+                out.writeDouble(bs.hybrid_pending[i]);
+                out.writeDouble(bs.hybrid_target[i]);
+            }
+
+            out.writeInt(bs.microhabitats.size());
+            for(Microhabitat m : bs.microhabitats){
+                m.writeState(out);
+            }
+
+            snapshots.writeState(out);
+            out.writeBoolean(summary != null);
+            if(summary != null) summary.writeState(out);
+
+            out.flush();
+            return bytes.toByteArray();
+
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    private static BioSystem restoreRun(byte[] checkpoint, int runID, ParameterPoint point, RunOptions options, SnapshotStore[] snapshots, MICSummary[] summary){
+        //rebuilds a run from captureRun's output, setting snapshots[0] to the measurements so far,
+        //and summary[0] with the MIC summaries if the run was recording them.
+        //the gillespie engine's sum-trees aren't saved, they're rebuilt from the populations on the next step
+        try{
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(checkpoint));
+
+            if(in.readInt() != checkpoint_magic || in.readInt() != checkpoint_version || in.readInt() != runID){
+                throw new IOException("checkpoint doesn't belong to runID "+runID);
+            }
+            long master_seed = in.readLong();
+            if(master_seed != options.master_seed){
+                System.out.println("runID: "+runID+"\tcheckpoint was made with master seed "+master_seed+", not "+options.master_seed);
+            }
+            if(in.readBoolean() != options.common_random_numbers || in.readBoolean() != options.antithetic_pairs){
+                throw new IOException("checkpoint of runID "+runID+" was made with different random number streams");
+            }
+
+            ParameterPoint saved = new ParameterPoint(0., 0.);
+            saved.alpha = in.readDouble();
+            saved.c_max = in.readDouble();
+            saved.scale = in.readDouble();
+            saved.sigma = in.readDouble();
+            saved.K = in.readInt();
+            saved.deterioration_rate = in.readDouble();
+            saved.immigration_rate = in.readDouble();
+            if(saved.alpha != point.alpha || saved.c_max != point.c_max || saved.scale != point.scale || saved.sigma != point.sigma
+                    || saved.K != point.K || saved.deterioration_rate != point.deterioration_rate || saved.immigration_rate != point.immigration_rate){
+                throw new IOException("checkpoint of runID "+runID+" was made with different parameters");
+            }
+            BioSystem bs = new BioSystem(point, runID, options);
+
+            bs.time_elapsed = in.readDouble();
+            bs.exit_time = in.readDouble();
+            bs.immigration_index = in.readInt();
+            bs.n_detachments = in.readInt();
+            bs.n_deaths = in.readInt();
+            bs.n_replications = in.readInt();
+            bs.n_immigrations = in.readInt();
+            bs.n_sweeps = in.readInt();
+            bs.n_rejected_sweeps = in.readInt();
+            long[] rng_state = new long[5];
+            for(int i = 0; i < rng_state.length; i++) rng_state[i] = in.readLong();
+            bs.rand.setState(rng_state);
+            if(options.common_random_numbers){
+                for(Xoshiro256StarStar stream : new Xoshiro256StarStar[]{bs.immigration_rand, bs.migration_rand, bs.mic_rand}){
+                    for(int i = 0; i < rng_state.length; i++) rng_state[i] = in.readLong();
+                    stream.setState(rng_state);
+                }
+            }
+            for(int i = 0; i < bs.thickness_limit; i++){
+                bs.hybrid_pending[i] = in.readDouble();
+                bs.hybrid_target[i] = in.readDouble();
+            }
+
+            int n_microhabs = in.readInt();
+            bs.microhabitats.clear();
+            for(int i = 0; i < n_microhabs; i++){
+                bs.microhabitats.add(Microhabitat.readState(in, point.scale, point.sigma, bs.mic_rand));
+            }
+
+            snapshots[0] = SnapshotStore.readState(in);
+            if(in.readBoolean()) summary[0] = MICSummary.readState(in);
+            return bs;
+
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
     }
 
 
@@ -367,10 +1133,10 @@ class BioSystem {
 
 
     private static int[] getThicknessAndEventCountersReachedAfterATime(double duration, int i, double scale, double sigma){
-        int K = 120;
-        double c_max = 10., alpha = 0.01;
+        ParameterPoint point = new ParameterPoint(scale, sigma);
+        int K = point.K;
 
-        BioSystem bs = new BioSystem(alpha, c_max, scale, sigma);
+        BioSystem bs = new BioSystem(point, i);
         System.out.println("detach_rate: "+bs.deterioration_rate);
         int nUpdates = 20;
         double interval = duration/nUpdates;
@@ -399,22 +1165,18 @@ class BioSystem {
     static void getBiofilmThicknessHistoInParallel(int nReps, double scale, double sigma){
         long startTime = System.currentTimeMillis();
 
-        int nSections = 9; //number of sections the reps will be divided into, to avoid using loadsa resources
-        int nRuns = nReps/nSections; //number of runs in each section
-
-        double duration = 25.*7.*24.; //25 week duration
+        double duration = run_duration;
 
         int[][] index_and_counters_reached = new int[nReps][];
 
         String index_reached_filename = "pyrithione-t="+String.valueOf(duration)+"-parallel-event_counters_sigma="+String.format("%.5f", sigma);
         String[] headers = new String[]{"bf thickness", "n_deaths", "n_detachments", "n_immigrations", "n_replications", "exit time"};
 
-        for(int j = 0; j < nSections; j++){
-            System.out.println("section: "+j);
-
-            IntStream.range(j*nRuns, (j+1)*nRuns).parallel().forEach(i ->
-                    index_and_counters_reached[i] = BioSystem.getThicknessAndEventCountersReachedAfterATime(duration, i, scale, sigma));
-        }
+        ReplicateScheduler scheduler = new ReplicateScheduler(new RunOptions());
+        scheduler.runAll(IntStream.range(0, nReps).toArray(),
+                i -> BioSystem.getThicknessAndEventCountersReachedAfterATime(duration, i, scale, sigma),
+                (i, counters) -> index_and_counters_reached[i] = counters);
+        scheduler.shutdown();
 
         Toolbox.writeCountersToFile(index_reached_filename, headers, index_and_counters_reached);
 
@@ -0,0 +1,74 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+class Checkpointer {
+    //saves in-flight runs of an ensemble to disk every so often, so a long ensemble can be resumed after the JVM dies.
+    //the simulation thread only serialises its state into a byte array, the disk write happens on a background
+    //thread. files are written to a temp file and then moved into place, so a crash mid-write never leaves a
+    //truncated checkpoint behind.
+
+    private static final String file_extension = ".ckpt";
+    private static final int steps_between_clock_checks = 1024;
+
+    private static final ExecutorService disk = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "checkpoint-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private File directory;
+    private long interval_nanos;
+
+    Checkpointer(String directoryName, double interval_seconds){
+        this.directory = new File(directoryName);
+        if(!directory.exists()) directory.mkdirs();
+        this.interval_nanos = (long)(interval_seconds*1e9);
+    }
+
+
+    private File fileFor(int runID){
+        return new File(directory, "run-"+runID+file_extension);
+    }
+
+    boolean isDue(long step, long last_save_nanos){
+        //only looks at the clock every so often, as this is called every step
+        return step%steps_between_clock_checks == 0 && System.nanoTime() - last_save_nanos >= interval_nanos;
+    }
+
+    void save(int runID, byte[] state){
+        File target = fileFor(runID);
+        File temp = new File(directory, "run-"+runID+file_extension+".tmp");
+        disk.submit(() -> {
+            try{
+                Files.write(temp.toPath(), state);
+                Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }catch(IOException e){
+                System.out.println("checkpoint of runID "+runID+" failed: "+e.getMessage());
+            }
+        });
+    }
+
+    byte[] load(int runID){
+        File file = fileFor(runID);
+        if(!file.exists()) return null;
+        try{
+            return Files.readAllBytes(file.toPath());
+        }catch(IOException e){
+            System.out.println("couldn't read checkpoint of runID "+runID+", starting it again: "+e.getMessage());
+            return null;
+        }
+    }
+
+    void delete(int runID){
+        //queued behind any pending save of the same run, so a late save can't bring the checkpoint back
+        File file = fileFor(runID);
+        disk.submit(() -> {
+            file.delete();
+        });
+    }
+
+}
@@ -1,21 +1,23 @@
-import java.util.ArrayList;
-
 public class DataBox {
 
     private int runID;
     private int[] event_counters;
-    private ArrayList<Double> times;
-    private ArrayList<ArrayList<ArrayList<Double>>> all_microhab_pops;
+    private SnapshotStore snapshots;
+    private MICSummary mic_summary; //null unless the run recorded MIC summaries instead of snapshots
 
-    public DataBox(int runID, int[] event_counters, ArrayList<Double> times, ArrayList<ArrayList<ArrayList<Double>>> all_microhab_pops){
+    public DataBox(int runID, int[] event_counters, SnapshotStore snapshots){
         this.runID = runID;
         this.event_counters = event_counters;
-        this.times = times;
-        this.all_microhab_pops = all_microhab_pops;
+        this.snapshots = snapshots;
+    }
+
+    public DataBox(int runID, int[] event_counters, MICSummary mic_summary){
+        this(runID, event_counters, new SnapshotStore(false));
+        this.mic_summary = mic_summary;
     }
 
     public int getRunID(){return runID;}
     public int[] getEvent_counters(){return event_counters;}
-    public ArrayList<Double> getTimes(){return times;}
-    public ArrayList<ArrayList<ArrayList<Double>>> getAll_microhab_pops(){return all_microhab_pops;}
+    SnapshotStore getSnapshots(){return snapshots;}
+    MICSummary getMic_summary(){return mic_summary;}
 }
@@ -0,0 +1,286 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+class EnsembleMetrics implements EnsembleMetricsMXBean {
+    //progress of the runs in an ensemble: tau steps, rejected sweeps (tau halvings), events, the recent size of the
+    //tau step, biofilm thickness and heap use.
+    //each run only touches its own RunMetrics, and publishes into it every publish_interval steps, adding what's
+    //changed to the shared LongAdders, so the simulation threads never wait on each other or on stdout.
+    //a single reporter thread prints a one-line summary every options.progress_interval seconds, the same numbers
+    //are exposed as an MXBean, and a csv in each results directory gets a line per run as soon as the run finishes,
+    //flushed straight away so it's complete up to the last finished run if the ensemble is killed.
+    //the smallest recent tau step picks out runs stuck rejecting sweep after sweep.
+
+    private static final int publish_interval = 256; //steps between a run's updates
+    static final String csv_filename = "run_metrics.csv";
+    private static final String[] csv_headers = {"run_ID", "wall_time_s", "tau_steps", "rejected_sweeps", "events",
+            "events_per_s", "mean_tau", "min_tau", "thickness", "sim_time"};
+
+    private LongAdder tau_steps = new LongAdder(), rejected_sweeps = new LongAdder(), events = new LongAdder();
+    private LongAdder completed_runs = new LongAdder();
+    private Set<RunMetrics> active_runs = ConcurrentHashMap.newKeySet();
+    private HashMap<String, TextEncoder> csv_writers = new HashMap<>(); //by results directory, guarded by itself
+
+    private RunOptions options;
+    private String run_csv_filename; //relative to each results directory
+    private long start_nanos = System.nanoTime();
+    private long last_report_nanos = start_nanos, last_report_events = 0, last_report_steps = 0;
+    private volatile double events_per_second = 0.;
+    private ScheduledExecutorService reporter;
+    private ObjectName mbean_name;
+
+
+    class RunMetrics {
+        //written by the run's own thread only, read by the reporter and over JMX
+        final ParameterPoint point;
+        final int runID;
+        private final long run_start_nanos = System.nanoTime();
+
+        private int window_steps = 0;
+        private double window_time = 0., window_min_step = Double.POSITIVE_INFINITY;
+
+        volatile long steps = 0, rejected = 0, n_events = 0;
+        volatile double sim_time = 0., recent_tau = Double.NaN, min_tau = Double.POSITIVE_INFINITY;
+        volatile int thickness = 0;
+        volatile long wall_nanos = 0;
+
+        private RunMetrics(ParameterPoint point, int runID){
+            this.point = point;
+            this.runID = runID;
+        }
+
+        boolean recordStep(double step){
+            //true when it's time to publish
+            window_steps++;
+            window_time += step;
+            if(step < window_min_step) window_min_step = step;
+            return window_steps == publish_interval;
+        }
+
+        void publish(long total_rejected, long total_events, double time, int thickness){
+            if(window_steps > 0){
+                recent_tau = window_time/window_steps;
+                if(window_min_step < min_tau) min_tau = window_min_step;
+            }
+            tau_steps.add(window_steps);
+            rejected_sweeps.add(total_rejected - rejected);
+            events.add(total_events - n_events);
+
+            steps += window_steps;
+            rejected = total_rejected;
+            n_events = total_events;
+            sim_time = time;
+            this.thickness = thickness;
+            wall_nanos = System.nanoTime() - run_start_nanos;
+
+            window_steps = 0;
+            window_time = 0.;
+            window_min_step = Double.POSITIVE_INFINITY;
+        }
+    }
+
+
+    EnsembleMetrics(RunOptions options){
+        this(options, csv_filename);
+    }
+
+    EnsembleMetrics(RunOptions options, String run_csv_filename){
+        this.options = options;
+        this.run_csv_filename = run_csv_filename;
+
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("pyrithione:type=EnsembleMetrics");
+            if(server.isRegistered(name)) server.unregisterMBean(name); //left by an earlier ensemble in the same jvm
+            server.registerMBean(this, name);
+            mbean_name = name;
+        }catch(JMException e){
+            System.out.println("metrics not available over JMX: "+e.getMessage());
+        }
+
+        if(options.progress_interval > 0.){
+            long interval_ms = (long)(1000*options.progress_interval);
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-reporter");
+                t.setDaemon(true);
+                return t;
+            });
+            reporter.scheduleAtFixedRate(() -> System.out.println(summaryLine()), interval_ms, interval_ms, TimeUnit.MILLISECONDS);
+        }
+    }
+
+
+    RunMetrics runStarted(ParameterPoint point, int runID){
+        RunMetrics run = new RunMetrics(point, runID);
+        active_runs.add(run);
+        return run;
+    }
+
+    void runFinished(RunMetrics run){
+        active_runs.remove(run);
+        completed_runs.increment();
+        writeCSVLine(run);
+    }
+
+    void runAbandoned(RunMetrics run){
+        //a run that was cancelled or failed, which doesn't go in the csv
+        active_runs.remove(run);
+    }
+
+
+    ////////////////// MXBEAN ///////////////////////////
+    public int getActiveRuns(){return active_runs.size();}
+    public long getCompletedRuns(){return completed_runs.sum();}
+    public long getTauSteps(){return tau_steps.sum();}
+    public long getRejectedSweeps(){return rejected_sweeps.sum();}
+    public long getEvents(){return events.sum();}
+    public double getEventsPerSecond(){return events_per_second;}
+
+    public double getSmallestRecentTauStep(){
+        RunMetrics slowest = slowestRun();
+        return slowest == null ? Double.NaN : slowest.recent_tau;
+    }
+
+    public int getSmallestRecentTauStepRunID(){
+        RunMetrics slowest = slowestRun();
+        return slowest == null ? -1 : slowest.runID;
+    }
+
+    public int getMaxThickness(){
+        int max = 0;
+        for(RunMetrics run : active_runs) max = Math.max(max, run.thickness);
+        return max;
+    }
+
+    public long getHeapUsedBytes(){
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private RunMetrics slowestRun(){
+        RunMetrics slowest = null;
+        for(RunMetrics run : active_runs){
+            if(Double.isNaN(run.recent_tau)) continue;
+            if(slowest == null || run.recent_tau < slowest.recent_tau) slowest = run;
+        }
+        return slowest;
+    }
+
+
+    ////////////////// REPORTING ///////////////////////////
+    synchronized String summaryLine(){
+        //only called by the reporter thread and close, the synchronisation is just for the rate calculation
+        long now = System.nanoTime();
+        long total_events = events.sum(), total_steps = tau_steps.sum(), total_rejected = rejected_sweeps.sum();
+        double seconds = (now - last_report_nanos)/1e9;
+        if(seconds > 0.){
+            events_per_second = (total_events - last_report_events)/seconds;
+        }
+        double steps_per_second = seconds > 0. ? (total_steps - last_report_steps)/seconds : 0.;
+        last_report_nanos = now;
+        last_report_events = total_events;
+        last_report_steps = total_steps;
+
+        RunMetrics slowest = slowestRun();
+        String slowest_tau = slowest == null ? "-" : String.format("%.3E (runID %d)", slowest.recent_tau, slowest.runID);
+        double rejected_percent = total_steps + total_rejected > 0 ? 100.*total_rejected/(total_steps + total_rejected) : 0.;
+
+        return "["+Toolbox.millisToShortDHMS((now - start_nanos)/1000000)+"]"
+                +"\truns: "+completed_runs.sum()+" done, "+active_runs.size()+" active"
+                +"\tsteps/s: "+String.format("%.3E", steps_per_second)
+                +"\tevents/s: "+String.format("%.3E", events_per_second)
+                +"\trejected: "+String.format("%.2f%%", rejected_percent)
+                +"\tsmallest recent tau: "+slowest_tau
+                +"\tmax thickness: "+getMaxThickness()
+                +"\theap: "+getHeapUsedBytes()/(1024*1024)+" MB";
+    }
+
+
+    void close(){
+        //stops the reporter, prints a last summary and closes the per-run csvs
+        if(reporter != null) reporter.shutdownNow();
+        System.out.println(summaryLine());
+
+        if(mbean_name != null){
+            try{
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbean_name);
+            }catch(JMException e){}
+        }
+
+        synchronized(csv_writers){
+            for(String directoryName : csv_writers.keySet()){
+                TextEncoder out = csv_writers.get(directoryName);
+                if(out == null) continue;
+                try{
+                    out.close();
+                }catch(IOException e){
+                    System.out.println("couldn't write "+run_csv_filename+" in "+directoryName+": "+e.getMessage());
+                }
+            }
+            csv_writers.clear();
+        }
+    }
+
+    private void writeCSVLine(RunMetrics run){
+        //called by the runs' own threads, so lines are in order of completion. a directory whose csv can't be
+        //written is reported once and then left out
+        String directoryName = BioSystem.resultsDirectoryName(run.point);
+        synchronized(csv_writers){
+            try{
+                if(!csv_writers.containsKey(directoryName)) csv_writers.put(directoryName, openCSV(directoryName));
+                TextEncoder out = csv_writers.get(directoryName);
+                if(out == null) return;
+
+                double wall_seconds = run.wall_nanos/1e9;
+                out.appendInt(run.runID).append(',');
+                out.appendScientific(wall_seconds, 4).append(',');
+                out.appendInt(run.steps).append(',');
+                out.appendInt(run.rejected).append(',');
+                out.appendInt(run.n_events).append(',');
+                out.appendScientific(wall_seconds > 0. ? run.n_events/wall_seconds : 0., 4).append(',');
+                out.appendScientific(run.steps > 0 ? run.sim_time/run.steps : 0., 4).append(',');
+                out.appendScientific(Double.isInfinite(run.min_tau) ? 0. : run.min_tau, 4).append(',');
+                out.appendInt(run.thickness).append(',');
+                out.appendScientific(run.sim_time, 4);
+                out.newLine();
+                out.flush();
+            }catch(IOException e){
+                System.out.println("couldn't write "+run_csv_filename+" in "+directoryName+": "+e.getMessage());
+                TextEncoder out = csv_writers.put(directoryName, null);
+                if(out != null){
+                    try{
+                        out.close();
+                    }catch(IOException ignored){}
+                }
+            }
+        }
+    }
+
+    private TextEncoder openCSV(String directoryName) throws IOException{
+        //a resumed ensemble adds its runs to the file left by the earlier one
+        File directory = new File(directoryName);
+        if(!directory.exists()) directory.mkdirs();
+        File file = new File(directory, run_csv_filename);
+        boolean append = options.resume && file.exists();
+
+        TextEncoder out = new TextEncoder(file, append);
+        if(!append){
+            for(int i = 0; i < csv_headers.length; i++){
+                if(i > 0) out.append(',');
+                out.append(csv_headers[i]);
+            }
+            out.newLine();
+        }
+        return out;
+    }
+}
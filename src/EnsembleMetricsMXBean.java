@@ -0,0 +1,14 @@
+public interface EnsembleMetricsMXBean {
+    //what EnsembleMetrics exposes over JMX, e.g. to jconsole, while an ensemble is running
+
+    int getActiveRuns();
+    long getCompletedRuns();
+    long getTauSteps();
+    long getRejectedSweeps();
+    long getEvents();
+    double getEventsPerSecond();
+    double getSmallestRecentTauStep(); //over the active runs, of the mean step in each run's latest window
+    int getSmallestRecentTauStepRunID();
+    int getMaxThickness();
+    long getHeapUsedBytes();
+}
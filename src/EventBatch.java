@@ -0,0 +1,239 @@
+import java.util.Arrays;
+
+class EventBatch {
+    //samples one tau step's migrations, detachments, replications and deaths for a whole microhab, in passes over
+    //primitive arrays rather than drawing and branching bacterium by bacterium: all the rates, then a cheap bound on
+    //each poisson threshold, then every uniform in one go, then the event counts by testing uniforms against the bounds.
+    //exp(-lambda) >= 1 - lambda, so a uniform below 1 - lambda always means no event, and exp(-lambda) itself is only
+    //needed for the few uniforms above it (about lambda of them, ~1e-3 per bacterium per step).
+    //uniforms are drawn in the same order, and turned into counts by the same inversion, as the per-bacterium loop
+    //(sampleEachBacterium), so results are unchanged. if the sweep is rejected the generator is wound back to just
+    //after the rejecting draw, as if the rest had never been drawn.
+    //the passes are plain counted loops over arrays, which is what the jit needs to vectorise them.
+    //sampleCategorical is the categorical leaping scheme, which draws each bacterium's events in one go.
+    //with common random numbers, the migration draws come from a stream of their own (migration_rand), drawn in bulk
+    //and wound back on rejection the same way. otherwise migration_rand is rand, and they're interleaved as above.
+
+    private static final double max_lambda = 30.; //PoissonSampler's chunk size, above which a draw takes several uniforms
+    private static final double bound_margin = 1e-12; //covers rounding in 1 - lambda and exp(-lambda), both within an ulp of 1
+
+    private Xoshiro256StarStar rand, migration_rand;
+    private PoissonSampler poisson, migration_poisson;
+    private boolean separate_migration; //migration_rand isn't rand
+
+    private double[] rates = new double[0];
+    private double[] lambdas = new double[0];
+    private double[] no_event_bounds = new double[0]; //uniforms at or below these are certain to give no event
+    private double[] uniforms = new double[0];
+    private double[] migration_uniforms = new double[0];
+    private long[] saved_state = new long[5], saved_migration_state = new long[5];
+
+    EventBatch(Xoshiro256StarStar rand, PoissonSampler poisson){
+        this(rand, poisson, rand, poisson);
+    }
+
+    EventBatch(Xoshiro256StarStar rand, PoissonSampler poisson, Xoshiro256StarStar migration_rand, PoissonSampler migration_poisson){
+        this.rand = rand;
+        this.poisson = poisson;
+        this.migration_rand = migration_rand;
+        this.migration_poisson = migration_poisson;
+        this.separate_migration = migration_rand != rand;
+    }
+
+
+    private void ensureCapacity(int n_bacteria){
+        if(n_bacteria > rates.length){
+            int capacity = Math.max(n_bacteria, 2*rates.length);
+            rates = new double[capacity];
+            lambdas = new double[capacity];
+            no_event_bounds = new double[capacity];
+            uniforms = new double[3*capacity];
+            if(separate_migration) migration_uniforms = new double[capacity];
+        }
+    }
+
+
+    boolean sample(Microhabitat m, double crowding, double mig_lambda, double det_lambda, double tau_step,
+                   int[] n_replications, int[] n_deaths, int[] n_migrations, int[] n_detachments){
+        //fills the event counts for each bacterium in m, with n_detachments null unless m is the immigration zone.
+        //returns false if the sweep has to be rejected (more than one migration, detachment or death for a bacterium)
+        int N = m.getN();
+        ensureCapacity(N);
+
+        m.fillRates(rates, crowding);
+        double max_rate_lambda = 0.;
+        for(int i = 0; i < N; i++){
+            lambdas[i] = Math.abs(rates[i])*tau_step;
+            max_rate_lambda = Math.max(max_rate_lambda, lambdas[i]);
+        }
+        if(mig_lambda > max_lambda || det_lambda > max_lambda || max_rate_lambda > max_lambda){
+            //a draw would take more than one uniform, so the no. of uniforms isn't known up front
+            return sampleEachBacterium(m, crowding, mig_lambda, det_lambda, tau_step, n_replications, n_deaths, n_migrations, n_detachments);
+        }
+
+        for(int i = 0; i < N; i++) no_event_bounds[i] = 1. - lambdas[i] - bound_margin;
+
+        //a poisson with mean 0 is drawn without a uniform
+        boolean mig_draw = mig_lambda > 0., det_draw = n_detachments != null && det_lambda > 0.;
+        boolean shared_mig_draw = mig_draw && !separate_migration;
+        int n_uniforms = N*((shared_mig_draw ? 1 : 0) + (det_draw ? 1 : 0));
+        for(int i = 0; i < N; i++) n_uniforms += (lambdas[i] > 0.) ? 1 : 0;
+
+        rand.getState(saved_state);
+        if(n_uniforms > uniforms.length) uniforms = new double[Math.max(n_uniforms, 2*uniforms.length)];
+        rand.nextDoubles(uniforms, n_uniforms);
+        if(separate_migration){
+            migration_rand.getState(saved_migration_state);
+            if(mig_draw) migration_rand.nextDoubles(migration_uniforms, N);
+        }
+
+        double mig_p0 = Math.exp(-mig_lambda), mig_cdf1 = mig_p0 + mig_p0*mig_lambda;
+        double det_p0 = Math.exp(-det_lambda), det_cdf1 = det_p0 + det_p0*det_lambda;
+
+        int o = 0, mo = 0; //next uniform, and next migration uniform if they're separate
+        for(int i = 0; i < N; i++){
+
+            int mig = 0, det = 0, rep = 0, death = 0;
+
+            if(shared_mig_draw){
+                mig = atMostTwo(uniforms[o++], mig_p0, mig_cdf1, mig_lambda);
+                if(mig > 1) return reject(o, mo);
+            }else if(mig_draw){
+                mig = atMostTwo(migration_uniforms[mo++], mig_p0, mig_cdf1, mig_lambda);
+                if(mig > 1) return reject(o, mo);
+            }
+
+            if(det_draw){
+                det = atMostTwo(uniforms[o++], det_p0, det_cdf1, det_lambda);
+                if(det > 1) return reject(o, mo);
+                //if a bacteria is detaching then it can't migrate
+                if(det != 0) mig = 0;
+            }
+
+            if(lambdas[i] > 0.){
+                double u = uniforms[o++];
+                if(u <= no_event_bounds[i]){
+                    //no event, the usual case
+                }else if(rates[i] > 0.){
+                    double p0 = Math.exp(-lambdas[i]);
+                    rep = (u > p0) ? PoissonSampler.invert(lambdas[i], p0, u) : 0;
+                }else{
+                    double p0 = Math.exp(-lambdas[i]);
+                    death = atMostTwo(u, p0, p0 + p0*lambdas[i], lambdas[i]);
+                    if(death > 1) return reject(o, mo);
+                    //if a death is occurring, then that bacteria can't migrate or detach
+                    if(death != 0){
+                        mig = 0;
+                        det = 0;
+                    }
+                }
+            }
+
+            n_migrations[i] = mig;
+            if(n_detachments != null) n_detachments[i] = det;
+            n_replications[i] = rep;
+            n_deaths[i] = death;
+        }
+        return true;
+    }
+
+
+    void sampleCategorical(Microhabitat m, double crowding, double mig_rate, double det_rate, double tau_step,
+                           int[] n_replications, int[] n_deaths, int[] n_migrations, int[] n_detachments){
+        //as sample, but each bacterium has at most one event per step: one uniform decides whether its first event
+        //(at total rate a = |replication or death rate| + migration + detachment) comes within the step, which has
+        //probability 1 - exp(-a*tau), and if so which one, in proportion to the rates. so there's nothing to reject,
+        //and a step can be long as long as the rates don't change much over it. rates here are per unit time, and
+        //mig_rate should be 0 when there's nowhere to migrate to
+        int N = m.getN();
+        ensureCapacity(N);
+
+        m.fillRates(rates, crowding);
+        double fixed_rate = mig_rate + ((n_detachments != null) ? det_rate : 0.);
+        for(int i = 0; i < N; i++) lambdas[i] = (fixed_rate + Math.abs(rates[i]))*tau_step;
+
+        rand.nextDoubles(uniforms, N);
+
+        for(int i = 0; i < N; i++){
+            int rep = 0, death = 0, mig = 0, det = 0;
+
+            //1 - exp(-lambda) <= lambda, so a uniform above lambda means no event, the usual case
+            double u = uniforms[i];
+            if(u < lambdas[i]){
+                double p_event = -Math.expm1(-lambdas[i]);
+                if(u < p_event){
+                    //given an event, u/p_event is uniform on [0, 1), and is split between the events by rate
+                    double rate = Math.abs(rates[i]);
+                    double target = u/p_event*(fixed_rate + rate);
+                    if(target < rate){
+                        if(rates[i] > 0.) rep = 1;
+                        else death = 1;
+                    }else if(target < rate + mig_rate || n_detachments == null){
+                        mig = 1;
+                    }else{
+                        det = 1;
+                    }
+                }
+            }
+
+            n_migrations[i] = mig;
+            if(n_detachments != null) n_detachments[i] = det;
+            n_replications[i] = rep;
+            n_deaths[i] = death;
+        }
+    }
+
+
+    private static int atMostTwo(double u, double p0, double cdf1, double lambda){
+        //PoissonSampler.invert for a uniform u, except that anything above 1 comes out as 2
+        if(!(u > p0 && p0 > 0.)) return 0;
+        return (u > cdf1 && p0*lambda > 0.) ? 2 : 1;
+    }
+
+    private boolean reject(int n_used, int n_migration_used){
+        //puts the generators where the per-bacterium loop would have left them, just after the rejecting draw
+        rand.setState(saved_state);
+        rand.skip(n_used);
+        if(separate_migration){
+            migration_rand.setState(saved_migration_state);
+            migration_rand.skip(n_migration_used);
+        }
+        return false;
+    }
+
+
+    private boolean sampleEachBacterium(Microhabitat m, double crowding, double mig_lambda, double det_lambda, double tau_step,
+                                        int[] n_replications, int[] n_deaths, int[] n_migrations, int[] n_detachments){
+        //the reference version of sample, which draws as it goes
+        Arrays.fill(n_replications, 0);
+        Arrays.fill(n_deaths, 0);
+        Arrays.fill(n_migrations, 0);
+        if(n_detachments != null) Arrays.fill(n_detachments, 0);
+
+        for(int bac_index = 0; bac_index < m.getN(); bac_index++){
+
+            n_migrations[bac_index] = migration_poisson.sample(mig_lambda);
+            if(n_migrations[bac_index] > 1) return false;
+
+            if(n_detachments != null){
+                n_detachments[bac_index] = poisson.sample(det_lambda);
+                if(n_detachments[bac_index] > 1) return false;
+                if(n_detachments[bac_index] != 0) n_migrations[bac_index] = 0;
+            }
+
+            double g_or_d_rate = m.replicationOrDeathRate(bac_index, crowding);
+            if(g_or_d_rate > 0){
+                n_replications[bac_index] = poisson.sampleUncached(g_or_d_rate*tau_step);
+            }else if(g_or_d_rate < 0){
+                n_deaths[bac_index] = poisson.sampleUncached(Math.abs(g_or_d_rate)*tau_step);
+                if(n_deaths[bac_index] > 1) return false;
+                if(n_deaths[bac_index] != 0){
+                    n_migrations[bac_index] = 0;
+                    if(n_detachments != null) n_detachments[bac_index] = 0;
+                }
+            }
+        }
+        return true;
+    }
+
+}
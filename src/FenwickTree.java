@@ -0,0 +1,88 @@
+import java.util.Arrays;
+
+class FenwickTree {
+    //binary indexed tree of non-negative weights, for O(log n) updates and weighted selection in the gillespie engine.
+    //grows on demand, and is rebuilt from the raw weights every so often so rounding errors can't pile up.
+
+    private static final int updates_between_rebuilds = 1 << 16;
+
+    private double[] weights; //raw weights, 0-indexed
+    private double[] tree; //partial sums, 1-indexed
+    private int capacity; //always a power of 2, which find() relies on
+    private int n_updates = 0;
+
+    FenwickTree(int initial_capacity){
+        capacity = Integer.highestOneBit(Math.max(initial_capacity, 2) - 1) << 1;
+        weights = new double[capacity];
+        tree = new double[capacity+1];
+    }
+
+
+    double get(int index){return weights[index];}
+
+    double total(){
+        //the root of a power of 2 sized tree covers every weight
+        return tree[capacity];
+    }
+
+    double prefixSum(int index){
+        //sum of the weights before index
+        double sum = 0.;
+        for(int i = index; i > 0; i -= i & -i){
+            sum += tree[i];
+        }
+        return sum;
+    }
+
+    void set(int index, double weight){
+        if(index >= capacity) grow(index+1);
+
+        double delta = weight - weights[index];
+        weights[index] = weight;
+        for(int i = index+1; i <= capacity; i += i & -i){
+            tree[i] += delta;
+        }
+
+        if(++n_updates >= updates_between_rebuilds) rebuild();
+    }
+
+    int find(double target){
+        //returns the index whose weight covers target, i.e. the smallest index with prefix sum > target.
+        //may return capacity if rounding puts target past the total, so callers should clamp.
+        int pos = 0;
+        for(int step = capacity; step > 0; step >>= 1){
+            int next = pos + step;
+            if(next <= capacity && tree[next] <= target){
+                pos = next;
+                target -= tree[next];
+            }
+        }
+        return pos;
+    }
+
+    void clear(){
+        Arrays.fill(weights, 0.);
+        Arrays.fill(tree, 0.);
+        n_updates = 0;
+    }
+
+
+    private void grow(int min_capacity){
+        while(capacity < min_capacity) capacity <<= 1;
+        weights = Arrays.copyOf(weights, capacity);
+        tree = new double[capacity+1];
+        rebuild();
+    }
+
+    private void rebuild(){
+        //O(n) construction, each node passes its sum up to its parent
+        Arrays.fill(tree, 0.);
+        for(int i = 1; i <= capacity; i++){
+            tree[i] += weights[i-1];
+            int parent = i + (i & -i);
+            if(parent <= capacity) tree[parent] += tree[i];
+        }
+        n_updates = 0;
+    }
+
+}
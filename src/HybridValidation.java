@@ -0,0 +1,115 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+public class HybridValidation {
+    //compares the hybrid engine with the exact genotype class engine it stands in for. each replicate starts from the
+    //same kind of mid-run state as the benchmarks (a biofilm of the given thickness, every microhab filled to 0.9K),
+    //drawn from its own master seed, and is run for a fixed time with each engine. the report gives, for a few
+    //summary statistics, the mean and st. dev. over replicates for each engine and the difference between the means
+    //in standard errors, along with the wall time per tau step. differences of more than ~3 standard errors point
+    //to a real bias rather than noise.
+    //run with: java -cp out:commons-math3-3.6.1.jar HybridValidation [n_replicates] [duration] [thickness] [c_max]
+
+    private static final String output_directory = "validation_output";
+    static final String[] statistics = {"total N", "biofilm N", "deep N (layers >= 2)", "mean log10 MIC",
+            "frac MIC > 1", "surface N", "immigration zone N", "thickness"};
+
+    public static void main(String[] args) throws IOException{
+        int n_replicates = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        double duration = args.length > 1 ? Double.parseDouble(args[1]) : 50.;
+        int thickness = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        double c_max = args.length > 3 ? Double.parseDouble(args[3]) : 0.5;
+
+        ParameterPoint point = new ParameterPoint(2.71760274, 0.56002833).withC_max(c_max);
+        double[][] exact = new double[n_replicates][], hybrid = new double[n_replicates][];
+        double[] exact_nanos = new double[1], hybrid_nanos = new double[1];
+        long[] exact_steps = new long[1], hybrid_steps = new long[1];
+
+        for(int r = 0; r < n_replicates; r++){
+            long seed = 1000L + r;
+            exact[r] = run(point, thickness, duration, new RunOptions().setMasterSeed(seed).setGenotypeClasses(true), exact_nanos, exact_steps);
+            hybrid[r] = run(point, thickness, duration, new RunOptions().setMasterSeed(seed).setGenotypeClasses(true).setHybrid(true), hybrid_nanos, hybrid_steps);
+        }
+
+        ArrayList<String> report = new ArrayList<>();
+        report.add("hybrid engine validation: "+n_replicates+" replicates, duration "+duration+", starting thickness "+thickness
+                +", "+point);
+        report.add(String.format("%-24s%14s%14s%14s%14s%12s", "#statistic", "exact mean", "exact sd", "hybrid mean", "hybrid sd", "diff/se"));
+        for(int k = 0; k < statistics.length; k++){
+            double[] e = column(exact, k), h = column(hybrid, k);
+            double se = Math.sqrt(variance(e)/n_replicates + variance(h)/n_replicates);
+            double z = se > 0. ? (mean(h) - mean(e))/se : 0.;
+            report.add(String.format("%-24s%14.4E%14.4E%14.4E%14.4E%12.2f", statistics[k], mean(e), Math.sqrt(variance(e)),
+                    mean(h), Math.sqrt(variance(h)), z));
+        }
+        double exact_per_step = exact_nanos[0]/exact_steps[0], hybrid_per_step = hybrid_nanos[0]/hybrid_steps[0];
+        report.add(String.format("%-24s%14.1f%28.1f%26s", "ns per tau step", exact_per_step, hybrid_per_step,
+                String.format("x%.2f", exact_per_step/hybrid_per_step)));
+
+        new File(output_directory).mkdirs();
+        StringBuilder contents = new StringBuilder();
+        for(String line : report){
+            System.out.println(line);
+            contents.append(line).append(System.lineSeparator());
+        }
+        Files.write(new File(output_directory, "hybrid_validation.txt").toPath(), contents.toString().getBytes());
+    }
+
+
+    private static double[] run(ParameterPoint point, int thickness, double duration, RunOptions options, double[] nanos, long[] steps){
+        BioSystem bs = BioSystem.withBiofilm(point, thickness, 0.9, options);
+        long start = System.nanoTime();
+        long n_steps = 0;
+        //performAction(until) catches every microhab up at duration, so the final state is taken at the same time
+        //a biofilm reaching the thickness limit sends the time off to 9e9, which ends the run too
+        while(bs.getTimeElapsed() < duration){
+            bs.performAction(duration);
+            n_steps++;
+        }
+        nanos[0] += System.nanoTime() - start;
+        steps[0] += n_steps;
+        return summarise(bs);
+    }
+
+    static double[] summarise(BioSystem bs){
+        //the statistics above, for the system as it is now
+        ArrayList<Microhabitat> microhabitats = bs.getMicrohabitats();
+        double total = 0., biofilm = 0., deep = 0., sum_log_mic = 0., resistant = 0.;
+        for(int mh = 0; mh < microhabitats.size(); mh++){
+            Microhabitat m = microhabitats.get(mh);
+            total += m.getN();
+            if(m.isBiofilm_region()) biofilm += m.getN();
+            if(mh >= 2 && !m.isImmigration_zone()) deep += m.getN();
+            //with individual bacteria, each entry is a class of one
+            int n_entries = m.hasGenotypeClasses() ? m.getN_classes() : m.getN();
+            for(int j = 0; j < n_entries; j++){
+                int count = m.hasGenotypeClasses() ? m.getClassCount(j) : 1;
+                sum_log_mic += count*Math.log10(m.getMIC(j));
+                if(m.getMIC(j) > 1.) resistant += count;
+            }
+        }
+        int n_mh = microhabitats.size();
+        return new double[]{total, biofilm, deep, total > 0. ? sum_log_mic/total : 0., total > 0. ? resistant/total : 0.,
+                microhabitats.get(0).getN(), microhabitats.get(n_mh-1).getN(), n_mh-1};
+    }
+
+    static double[] column(double[][] rows, int k){
+        double[] column = new double[rows.length];
+        for(int r = 0; r < rows.length; r++) column[r] = rows[r][k];
+        return column;
+    }
+
+    static double mean(double[] x){
+        double sum = 0.;
+        for(double v : x) sum += v;
+        return sum/x.length;
+    }
+
+    static double variance(double[] x){
+        double m = mean(x), sum_sq = 0.;
+        for(double v : x) sum_sq += (v - m)*(v - m);
+        return x.length > 1 ? sum_sq/(x.length - 1) : 0.;
+    }
+}
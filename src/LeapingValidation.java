@@ -0,0 +1,95 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+
+public class LeapingValidation {
+    //compares the two ways tau leaping draws events for individual bacteria, independent poissons with rejected
+    //sweeps and a single categorical draw per bacterium, with the exact gillespie engine, at a few values of tau.
+    //replicates start from the same states as HybridValidation's and are summarised by the same statistics.
+    //the report gives each scheme's throughput (wall time per unit of simulated time) and share of rejected sweeps,
+    //then for each statistic the gillespie mean and every scheme's difference from it in standard errors.
+    //run with: java -cp out:commons-math3-3.6.1.jar LeapingValidation [n_replicates] [duration] [thickness] [c_max]
+
+    private static final String output_directory = "validation_output";
+    private static final double[] taus = {0.01, 0.05, 0.2};
+
+    public static void main(String[] args) throws IOException{
+        int n_replicates = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        double duration = args.length > 1 ? Double.parseDouble(args[1]) : 50.;
+        int thickness = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        double c_max = args.length > 3 ? Double.parseDouble(args[3]) : 0.5;
+
+        ParameterPoint point = new ParameterPoint(2.71760274, 0.56002833).withC_max(c_max);
+        ArrayList<String> names = new ArrayList<>();
+        ArrayList<double[][]> results = new ArrayList<>();
+        ArrayList<double[]> costs = new ArrayList<>(); //wall ms per unit time, fraction of sweeps rejected
+
+        //a short untimed pass over every scheme first, so none of them is timed while the jit is still compiling
+        ArrayList<double[]> warmup_costs = new ArrayList<>();
+        runScheme(point, thickness, duration/5., 2, new RunOptions().setEngine(RunOptions.Engine.GILLESPIE), warmup_costs);
+        for(double tau : taus){
+            for(RunOptions.LeapingScheme scheme : RunOptions.LeapingScheme.values()){
+                runScheme(point, thickness, duration/5., 2, new RunOptions().setTau(tau).setLeapingScheme(scheme), warmup_costs);
+            }
+        }
+
+        names.add("gillespie");
+        results.add(runScheme(point, thickness, duration, n_replicates, new RunOptions().setEngine(RunOptions.Engine.GILLESPIE), costs));
+        for(double tau : taus){
+            for(RunOptions.LeapingScheme scheme : RunOptions.LeapingScheme.values()){
+                names.add(scheme.name().toLowerCase()+"/"+tau);
+                results.add(runScheme(point, thickness, duration, n_replicates, new RunOptions().setTau(tau).setLeapingScheme(scheme), costs));
+            }
+        }
+
+        ArrayList<String> report = new ArrayList<>();
+        report.add("leaping scheme validation: "+n_replicates+" replicates, duration "+duration+", starting thickness "+thickness
+                +", "+point);
+        report.add(String.format("%-24s%18s%18s", "#scheme/tau", "ms per time unit", "rejected sweeps"));
+        for(int s = 0; s < names.size(); s++){
+            report.add(String.format("%-24s%18.2f%18.4f", names.get(s), costs.get(s)[0], costs.get(s)[1]));
+        }
+
+        StringBuilder header = new StringBuilder(String.format("%-24s%16s", "#statistic", "gillespie mean"));
+        for(int s = 1; s < names.size(); s++) header.append(String.format("%18s", names.get(s)));
+        report.add(header.append("   (diff/se)").toString());
+        for(int k = 0; k < HybridValidation.statistics.length; k++){
+            double[] exact = HybridValidation.column(results.get(0), k);
+            StringBuilder line = new StringBuilder(String.format("%-24s%16.4E", HybridValidation.statistics[k], HybridValidation.mean(exact)));
+            for(int s = 1; s < names.size(); s++){
+                double[] leaped = HybridValidation.column(results.get(s), k);
+                double se = Math.sqrt(HybridValidation.variance(exact)/n_replicates + HybridValidation.variance(leaped)/n_replicates);
+                double z = se > 0. ? (HybridValidation.mean(leaped) - HybridValidation.mean(exact))/se : 0.;
+                line.append(String.format("%18.2f", z));
+            }
+            report.add(line.toString());
+        }
+
+        new File(output_directory).mkdirs();
+        StringBuilder contents = new StringBuilder();
+        for(String line : report){
+            System.out.println(line);
+            contents.append(line).append(System.lineSeparator());
+        }
+        Files.write(new File(output_directory, "leaping_validation.txt").toPath(), contents.toString().getBytes());
+    }
+
+
+    private static double[][] runScheme(ParameterPoint point, int thickness, double duration, int n_replicates, RunOptions options,
+                                        ArrayList<double[]> costs){
+        double[][] results = new double[n_replicates][];
+        long nanos = 0, sweeps = 0, rejected = 0;
+        for(int r = 0; r < n_replicates; r++){
+            BioSystem bs = BioSystem.withBiofilm(point, thickness, 0.9, options.setMasterSeed(1000L + r));
+            long start = System.nanoTime();
+            while(bs.getTimeElapsed() < duration) bs.performAction(duration);
+            nanos += System.nanoTime() - start;
+            sweeps += bs.getN_sweeps();
+            rejected += bs.getN_rejected_sweeps();
+            results[r] = HybridValidation.summarise(bs);
+        }
+        costs.add(new double[]{nanos/1e6/(n_replicates*duration), sweeps > 0 ? rejected/(double)sweeps : 0.});
+        return results;
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+class MICSummary {
+    //per-microhab summaries of the MIC distribution over the course of a run: the no. of bacteria above each MIC
+    //threshold, and a histogram of log10(MIC) in fixed-width bins, from which N and quantiles are found.
+    //the histograms are stored sparse, as a microhab's MICs only fill a handful of bins, and every no. is written as a
+    //varint (7 bits a byte), as they're nearly all small. a measurement of a microhab then costs one or two bytes per
+    //threshold and non-empty bin, and a single byte if it's empty, against a full snapshot's 8 bytes per bacterium,
+    //so these can be taken more often than snapshots and still take less memory and disk (see RunOptions).
+    //rows are stored flat: measurement t covers data[first_data[t]] to data[first_data[t+1]-1], one row per microhab,
+    //and each row is [n_nonempty, above_threshold_0, ..., above_threshold_m, entry_0, ..., entry_n] with the
+    //thresholds and entries left out when n_nonempty is 0. each entry packs a non-empty bin's count and index as
+    //count << bin_bits | bin, in order of bin. MICs outside the histogram range are counted in the end bins.
+
+    static final String file_extension = ".bin";
+    static final int magic = 0x50594D53; //"PYMS"
+    static final short version = 1;
+
+    private double log_mic_min, bin_width;
+    private int n_bins, bin_bits;
+    private double[] thresholds;
+
+    private double[] times = new double[64];
+    private int[] first_data = new int[65];
+    private int n_times = 0;
+    private byte[] data = new byte[0];
+    private int n_data = 0;
+
+    private int[] above_counts, bin_counts; //the row being recorded, before it's encoded
+
+    MICSummary(RunOptions options){
+        this(options.log10_mic_min, options.log10_mic_max, options.n_mic_bins, options.mic_thresholds);
+    }
+
+    MICSummary(double log10_mic_min, double log10_mic_max, int n_bins, double[] thresholds){
+        this.log_mic_min = log10_mic_min;
+        this.bin_width = (log10_mic_max - log10_mic_min)/n_bins;
+        this.n_bins = n_bins;
+        this.bin_bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, n_bins-1));
+        this.thresholds = thresholds.clone();
+        this.above_counts = new int[thresholds.length];
+        this.bin_counts = new int[n_bins];
+    }
+
+
+    int getN_times(){return n_times;}
+    double getTime(int t){return times[t];}
+    int getN_microhabs(int t){
+        int n_microhabs = 0;
+        for(int offset = first_data[t]; offset < first_data[t+1]; offset = nextRow(offset)) n_microhabs++;
+        return n_microhabs;
+    }
+    int getN_bins(){return n_bins;}
+    int getN_thresholds(){return thresholds.length;}
+    double getThreshold(int k){return thresholds[k];}
+    double getBinLowerEdge(int b){return log_mic_min + b*bin_width;} //in log10(MIC)
+    int getN_bytes(){return n_data;} //size of the stored rows, for comparing with the snapshots they replace
+
+    private int readVarint(int position){
+        int value = 0, shift = 0;
+        byte b;
+        do{
+            b = data[position++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }while(b < 0);
+        return value;
+    }
+
+    private int skipVarint(int position){
+        //the position of the varint after the one at position
+        while(data[position++] < 0);
+        return position;
+    }
+
+    private void writeVarint(int value){
+        ensureCapacity(5);
+        while((value & ~0x7F) != 0){
+            data[n_data++] = (byte)(value | 0x80);
+            value >>>= 7;
+        }
+        data[n_data++] = (byte)value;
+    }
+
+    private int nextRow(int offset){
+        int n_nonempty = readVarint(offset);
+        offset = skipVarint(offset);
+        if(n_nonempty > 0) for(int j = 0; j < thresholds.length + n_nonempty; j++) offset = skipVarint(offset);
+        return offset;
+    }
+
+    private int rowOffset(int t, int mh){
+        //rows differ in length, so this walks the measurement's rows from the first
+        int offset = first_data[t];
+        for(int i = 0; i < mh; i++) offset = nextRow(offset);
+        return offset;
+    }
+
+    private int firstEntry(int offset){
+        //the position of a non-empty row's first entry
+        int position = skipVarint(offset);
+        for(int k = 0; k < thresholds.length; k++) position = skipVarint(position);
+        return position;
+    }
+
+    private int entryBin(int entry){return entry & ((1 << bin_bits) - 1);}
+    private int entryCount(int entry){return entry >>> bin_bits;}
+
+    int getN(int t, int mh){
+        int offset = rowOffset(t, mh), n_nonempty = readVarint(offset);
+        int N = 0;
+        for(int j = 0, position = firstEntry(offset); j < n_nonempty; j++, position = skipVarint(position)){
+            N += entryCount(readVarint(position));
+        }
+        return N;
+    }
+
+    int getN_above(int t, int mh, int k){
+        int offset = rowOffset(t, mh);
+        if(readVarint(offset) == 0) return 0;
+        int position = skipVarint(offset);
+        for(int i = 0; i < k; i++) position = skipVarint(position);
+        return readVarint(position);
+    }
+
+    int getBinCount(int t, int mh, int b){
+        int offset = rowOffset(t, mh), n_nonempty = readVarint(offset);
+        for(int j = 0, position = firstEntry(offset); j < n_nonempty; j++, position = skipVarint(position)){
+            int entry = readVarint(position);
+            if(entryBin(entry) == b) return entryCount(entry);
+        }
+        return 0;
+    }
+
+
+    void record(StateCapture capture){
+        int n_microhabs = capture.getN_microhabs();
+        startMeasurement(capture.time);
+        for(int mh = 0; mh < n_microhabs; mh++){
+            for(int i = capture.mh_starts[mh]; i < capture.mh_starts[mh+1]; i++){
+                addMIC(capture.MICs[i], (capture.counts == null) ? 1 : capture.counts[i]);
+            }
+            finishRow();
+        }
+        first_data[++n_times] = n_data;
+    }
+
+    private void startMeasurement(double time){
+        if(n_times == times.length){
+            times = Arrays.copyOf(times, 2*n_times);
+            first_data = Arrays.copyOf(first_data, 2*n_times+1);
+        }
+        times[n_times] = time;
+    }
+
+    private void addMIC(double MIC, int count){
+        for(int k = 0; k < thresholds.length; k++){
+            if(MIC > thresholds[k]) above_counts[k] += count;
+        }
+        int bin = (int)Math.floor((Math.log10(MIC) - log_mic_min)/bin_width);
+        bin = Math.max(0, Math.min(n_bins-1, bin));
+        bin_counts[bin] += count;
+    }
+
+    private void finishRow(){
+        int n_nonempty = 0;
+        for(int count : bin_counts) if(count > 0) n_nonempty++;
+        writeVarint(n_nonempty);
+        if(n_nonempty == 0) return;
+
+        for(int k = 0; k < thresholds.length; k++){
+            writeVarint(above_counts[k]);
+            above_counts[k] = 0;
+        }
+        for(int b = 0; b < n_bins; b++){
+            int count = bin_counts[b];
+            if(count == 0) continue;
+            if(count > (Integer.MAX_VALUE >>> bin_bits)) throw new IllegalStateException(count+" bacteria in one MIC bin, more than a summary entry can hold");
+            writeVarint(count << bin_bits | b);
+            bin_counts[b] = 0;
+        }
+    }
+
+    private void ensureCapacity(int n_bytes){
+        int needed = n_data + n_bytes;
+        if(needed > data.length) data = Arrays.copyOf(data, Math.max(needed, 2*data.length));
+    }
+
+
+    double quantile(int t, int mh, double q){
+        //estimated from the histogram, taking bacteria to be spread evenly in log10(MIC) across each bin.
+        //NaN for an empty microhab
+        int N = getN(t, mh);
+        if(N == 0) return Double.NaN;
+
+        int offset = rowOffset(t, mh), n_nonempty = readVarint(offset);
+        double target = q*N;
+        int cumulative = 0;
+        for(int j = 0, position = firstEntry(offset); j < n_nonempty; j++, position = skipVarint(position)){
+            int entry = readVarint(position), count = entryCount(entry);
+            if(cumulative + count >= target){
+                double fraction = (target - cumulative)/count;
+                return Math.pow(10., getBinLowerEdge(entryBin(entry)) + fraction*bin_width);
+            }
+            cumulative += count;
+        }
+        return Math.pow(10., getBinLowerEdge(n_bins));
+    }
+
+
+    void writeState(DataOutputStream out) throws IOException{
+        //also the layout of the summary files, after their magic and version (see Toolbox.writeMICSummaryToFile)
+        out.writeDouble(log_mic_min);
+        out.writeDouble(bin_width);
+        out.writeInt(n_bins);
+        out.writeInt(thresholds.length);
+        for(double threshold : thresholds) out.writeDouble(threshold);
+        out.writeInt(n_times);
+        for(int t = 0; t < n_times; t++){
+            out.writeDouble(times[t]);
+            out.writeInt(first_data[t+1]);
+        }
+        out.write(data, 0, n_data);
+    }
+
+    static MICSummary readState(DataInputStream in) throws IOException{
+        double log_mic_min = in.readDouble(), bin_width = in.readDouble();
+        int n_bins = in.readInt();
+        double[] thresholds = new double[in.readInt()];
+        for(int k = 0; k < thresholds.length; k++) thresholds[k] = in.readDouble();
+
+        MICSummary summary = new MICSummary(log_mic_min, log_mic_min + n_bins*bin_width, n_bins, thresholds);
+        summary.bin_width = bin_width; //exactly as saved, rather than recomputed from the range
+        summary.n_times = in.readInt();
+        int capacity = Math.max(64, summary.n_times);
+        summary.times = new double[capacity];
+        summary.first_data = new int[capacity+1];
+        for(int t = 0; t < summary.n_times; t++){
+            summary.times[t] = in.readDouble();
+            summary.first_data[t+1] = in.readInt();
+        }
+        summary.n_data = summary.first_data[summary.n_times];
+        summary.data = new byte[summary.n_data];
+        in.readFully(summary.data);
+        return summary;
+    }
+
+    static MICSummary readFile(File file) throws IOException{
+        //reads back a run's summaries as written by Toolbox.writeMICSummaryToFile
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))){
+            if(in.readInt() != magic) throw new IOException(file+" is not a MIC summary file");
+            short file_version = in.readShort();
+            if(file_version != version) throw new IOException(file+" has unsupported version "+file_version);
+            return readState(in);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+class MICSummaryObserver implements Observer {
+    //adds a measurement to a MICSummary at each observation time
+
+    private double[] observation_times;
+    private MICSummary summary;
+
+    MICSummaryObserver(double[] observation_times, MICSummary summary){
+        this.observation_times = observation_times;
+        this.summary = summary;
+    }
+
+    public double[] observationTimes(){return observation_times;}
+
+    public void observe(StateCapture capture){
+        summary.record(capture);
+    }
+}
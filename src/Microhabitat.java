@@ -1,6 +1,10 @@
 import org.apache.commons.math3.distribution.LogNormalDistribution;
+import org.apache.commons.math3.random.RandomGenerator;
 
-import java.util.ArrayList;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 
 
 class Microhabitat {
@@ -8,27 +12,69 @@ class Microhabitat {
     private LogNormalDistribution MIC_distribution;
 
     private double c; //concn of antimicrobial
-    private ArrayList<Double> population; //list of MICs of bacteria in microhab
+    private double[] population; //MICs of bacteria in microhab, only the first N entries are occupied
+    private int N; //no. of bacteria currently in microhab
+    //0.083*phi_c of each entry of population, worked out once when the entry is added since neither c nor an MIC
+    //ever changes. kept in step with population by every method that moves entries around
+    private double[] base_rates;
 
-    private int K = 120; //karryking kapacity
+    //with genotype classes, population instead holds one MIC per class, with class_counts[j] bacteria sharing
+    //population[j]. only the first n_classes entries are occupied, and N is still the total no. of bacteria.
+    private boolean genotype_classes;
+    private int[] class_counts;
+    private int n_classes;
+
+    private int K; //karryking kapacity
     private boolean surface = false, biofilm_region, immigration_zone = false;
 
-    Microhabitat(double c, double scale, double sigma){
+    Microhabitat(double c, double scale, double sigma, int K, boolean genotype_classes, RandomGenerator rand){
         this.c = c;
+        this.K = K;
         double mu = Math.log(scale);
-        this.population = new ArrayList<>(K);
+        this.population = new double[K];
+        this.base_rates = new double[K];
+        this.N = 0;
+        this.genotype_classes = genotype_classes;
+        this.class_counts = genotype_classes ? new int[K] : null;
+        this.n_classes = 0;
 
-        this.MIC_distribution = new LogNormalDistribution(mu, sigma);
+        this.MIC_distribution = new LogNormalDistribution(rand, mu, sigma); //draws from the run's generator
         biofilm_region = false;
     }
 
 
 
-    int getN(){return population.size();}
+    int getN(){return N;}
+    int getK(){return K;}
     boolean isSurface(){return surface;}
     boolean isBiofilm_region(){return biofilm_region;}
     boolean isImmigration_zone(){return immigration_zone;}
-    ArrayList<Double> getPopulation(){return population;}
+    boolean hasGenotypeClasses(){return genotype_classes;}
+    int getN_classes(){return n_classes;}
+    int getClassCount(int class_index){return class_counts[class_index];}
+    double getMIC(int index){return population[index];} //with genotype classes, index is a class index
+
+    double[] getPopulation(){
+        if(!genotype_classes) return Arrays.copyOf(population, N);
+
+        double[] expanded = new double[N];
+        int b = 0;
+        for(int j = 0; j < n_classes; j++){
+            for(int k = 0; k < class_counts[j]; k++){
+                expanded[b++] = population[j];
+            }
+        }
+        return expanded;
+    }
+
+    int getN_entries(){return genotype_classes ? n_classes : N;}
+
+    void copyEntries(double[] MICs, int[] counts, int offset){
+        //the MICs (and with genotype classes, the class counts) into the arrays from offset, for StateCapture
+        int n_entries = getN_entries();
+        System.arraycopy(population, 0, MICs, offset, n_entries);
+        if(genotype_classes) System.arraycopy(class_counts, 0, counts, offset, n_entries);
+    }
 
     void setSurface(){this.surface = true;}
     void setBiofilm_region(){this.biofilm_region = true;}
@@ -50,37 +96,187 @@ class Microhabitat {
         return (surface || immigration_zone) ? 0.5*b : b;
     }
 
-    private double beta(int index){
-        return population.get(index);
+    private double phi_c(double beta){
+        double cB = c/beta;
+        return 1. - (6.*cB*cB)/(5. + cB*cB);
     }
 
-    private double phi_c(int index){
-        double cB = c/beta(index);
-        return 1. - (6.*cB*cB)/(5. + cB*cB);
+    private double baseRate(double MIC){
+        return 0.083*(phi_c(MIC));
+    }
+
+    double phi_c_scaled(int index){
+        //replication (>0) or death (<0) rate of a bacterium before any crowding
+        return base_rates[index];
+    }
+
+    double crowdingFactor(){
+        //the (1 - N/K) multiplying positive replication rates, shared by every bacterium in the microhab.
+        //it goes negative above K, where the gillespie engine treats it as a death rate
+        return 1. - getN()/(double)K;
     }
 
     double replicationOrDeathRate(int index){
-        double phi_c_scaled = 0.083*(phi_c(index));
-        return (phi_c(index) > 0.) ? phi_c_scaled*(1. - getN()/(double)K) : phi_c_scaled;
+        return replicationOrDeathRate(index, crowdingFactor());
+    }
+
+    double replicationOrDeathRate(int index, double crowding){
+        //with genotype classes, index is a class index and this is the rate for each bacterium of that class.
+        //loops over a whole microhab should take crowdingFactor() once and pass it in
+        double phi_c_scaled = base_rates[index];
+        return (phi_c_scaled > 0.) ? phi_c_scaled*crowding : phi_c_scaled;
+    }
+
+
+    void fillRates(double[] rates, double crowding){
+        //replicationOrDeathRate for every entry, into rates[0, N) (or [0, n_classes) with genotype classes).
+        //a plain select over the array, so the jit can vectorise it
+        int n_entries = genotype_classes ? n_classes : N;
+        for(int i = 0; i < n_entries; i++){
+            double phi_c_scaled = base_rates[i];
+            rates[i] = (phi_c_scaled > 0.) ? phi_c_scaled*crowding : phi_c_scaled;
+        }
+    }
+
+
+    private void ensureCapacity(int min_capacity){
+        //microhabs can briefly go over K during a tau step, so the array is grown rather than capped
+        if(min_capacity > population.length){
+            int new_capacity = Math.max(min_capacity, 2*population.length);
+            population = Arrays.copyOf(population, new_capacity);
+            base_rates = Arrays.copyOf(base_rates, new_capacity);
+            if(genotype_classes) class_counts = Arrays.copyOf(class_counts, new_capacity);
+        }
     }
 
 
     void addARandomBacterium_x_N(int n_bacteria){
+        if(genotype_classes){
+            //MICs are continuous, so every immigrant starts its own class
+            for(int i = 0; i < n_bacteria; i++){
+                addNewClass(MIC_distribution.sample(), 1);
+            }
+            return;
+        }
+        ensureCapacity(N + n_bacteria);
         for(int i = 0; i < n_bacteria; i++){
-            population.add(MIC_distribution.sample());
+            double MIC = MIC_distribution.sample();
+            base_rates[N] = baseRate(MIC);
+            population[N++] = MIC;
         }
     }
 
     void replicateABacterium_x_N(int index, int nReps){
+        ensureCapacity(N + nReps);
+        double MIC = population[index], base_rate = base_rates[index];
         for(int i = 0; i < nReps; i++){
-            population.add(population.get(index));
+            base_rates[N] = base_rate;
+            population[N++] = MIC;
         }
     }
 
-    void addABacterium(double MIC){population.add(MIC);}
+    void addABacterium(double MIC){
+        if(genotype_classes){
+            addBacteria(MIC, 1);
+            return;
+        }
+        ensureCapacity(N + 1);
+        base_rates[N] = baseRate(MIC);
+        population[N++] = MIC;
+    }
+
+    void removeABacterium(int index){
+        //swap-with-last removal, so the bacterium previously at N-1 now sits at index.
+        //the order of bacteria within a microhab is meaningless, but callers iterating over indices have to go backwards
+        population[index] = population[--N];
+        base_rates[index] = base_rates[N];
+    }
+
+
+
+    ////////////////// GENOTYPE CLASSES ///////////////////////////
+    private void addNewClass(double MIC, int count){
+        ensureCapacity(n_classes + 1);
+        population[n_classes] = MIC;
+        base_rates[n_classes] = baseRate(MIC);
+        class_counts[n_classes] = count;
+        n_classes++;
+        N += count;
+    }
+
+    void addBacteria(double MIC, int count){
+        //adds count bacteria of this MIC to the matching class, or starts a new class at the end.
+        //classes are few, so a linear scan is cheaper than keeping a map up to date
+        for(int j = 0; j < n_classes; j++){
+            if(population[j] == MIC){
+                class_counts[j] += count;
+                N += count;
+                return;
+            }
+        }
+        addNewClass(MIC, count);
+    }
+
+    void changeClassCount(int class_index, int delta){
+        //used for replications (delta > 0) and deaths, detachments and emigrations (delta < 0).
+        //emptied classes are kept until removeEmptyClasses so that class indices stay valid during a tau step
+        class_counts[class_index] += delta;
+        N += delta;
+    }
+
+    void removeEmptyClasses(){
+        for(int j = n_classes-1; j >= 0; j--){
+            if(class_counts[j] == 0){
+                n_classes--;
+                population[j] = population[n_classes];
+                base_rates[j] = base_rates[n_classes];
+                class_counts[j] = class_counts[n_classes];
+            }
+        }
+    }
+
+
 
-    void removeABacterium(int index){population.remove(index);}
+    ////////////////// CHECKPOINTS ///////////////////////////
+    void writeState(DataOutputStream out) throws IOException{
+        out.writeDouble(c);
+        out.writeInt(K);
+        out.writeBoolean(surface);
+        out.writeBoolean(biofilm_region);
+        out.writeBoolean(immigration_zone);
+        out.writeBoolean(genotype_classes);
+        out.writeInt(N);
+        out.writeInt(n_classes);
 
+        int n_entries = genotype_classes ? n_classes : N;
+        for(int i = 0; i < n_entries; i++){
+            out.writeDouble(population[i]);
+            if(genotype_classes) out.writeInt(class_counts[i]);
+        }
+    }
+
+    static Microhabitat readState(DataInputStream in, double scale, double sigma, RandomGenerator rand) throws IOException{
+        //the MIC distribution holds no state of its own, it draws from the run's generator
+        double c = in.readDouble();
+        int K = in.readInt();
+        boolean surface = in.readBoolean(), biofilm_region = in.readBoolean(), immigration_zone = in.readBoolean();
+        boolean genotype_classes = in.readBoolean();
 
+        Microhabitat m = new Microhabitat(c, scale, sigma, K, genotype_classes, rand);
+        m.surface = surface;
+        m.biofilm_region = biofilm_region;
+        m.immigration_zone = immigration_zone;
+        m.N = in.readInt();
+        m.n_classes = in.readInt();
+
+        int n_entries = genotype_classes ? m.n_classes : m.N;
+        m.ensureCapacity(n_entries);
+        for(int i = 0; i < n_entries; i++){
+            m.population[i] = in.readDouble();
+            m.base_rates[i] = m.baseRate(m.population[i]);
+            if(genotype_classes) m.class_counts[i] = in.readInt();
+        }
+        return m;
+    }
 
 }
@@ -0,0 +1,27 @@
+import java.util.EnumSet;
+
+interface Observer {
+    //something that watches a run through StateCaptures, registered with the run's ObserverPipeline.
+    //the pipeline steps the run so that it lands exactly on each observation time, so an observer sees each of its
+    //times once, however tau varies. it can also ask for captures as events happen, e.g. each time a new microhab
+    //joins the biofilm; those come to observe too, told apart by their kind. observe and runFinished are called on
+    //the pipeline's thread, never the simulation's, in time order.
+
+    double[] observationTimes(); //ascending. read once, when the observer is registered
+
+    default EnumSet<StateCapture.Kind> events(){ //MICROHAB_ADDED and/or THICKNESS_LIMIT. read once, like the times
+        return EnumSet.noneOf(StateCapture.Kind.class);
+    }
+
+    void observe(StateCapture capture);
+
+    default void runFinished(StateCapture final_state){}
+
+
+    static double[] evenlySpaced(double duration, int n_intervals){
+        //0, duration/n, 2*duration/n, ..., duration
+        double[] times = new double[n_intervals+1];
+        for(int i = 0; i <= n_intervals; i++) times[i] = i*(duration/n_intervals);
+        return times;
+    }
+}
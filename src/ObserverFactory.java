@@ -0,0 +1,4 @@
+interface ObserverFactory {
+    //makes an observer for each run, for observers added through RunOptions.addObserver
+    Observer create(ParameterPoint point, int runID, double duration);
+}
@@ -0,0 +1,140 @@
+import java.util.List;
+
+class ObserverPipeline {
+    //connects a run to its observers. the simulation thread asks which time to step to next (nextTime), and once it
+    //gets there, which observers are due (dueAt), then submits a StateCapture for them. when an event happens, it
+    //asks which observers want it (wantsEvent) and submits a capture of that kind for them. captures go through a
+    //single-producer single-consumer ring to the pipeline's own thread, which hands them to the observers, so the
+    //simulation only pays for the copy. if the observers fall a whole ring behind, the simulation waits for them
+    //rather than dropping captures.
+
+    private static final int ring_capacity = 64;
+
+    private Observer[] observers;
+    private double[][] times;
+    private int[] next_index;
+    private long[] event_masks = new long[StateCapture.Kind.values().length]; //by kind, the observers that want it
+
+    private SpscRing<StateCapture> ring = new SpscRing<>(ring_capacity);
+    private Thread consumer;
+    private long n_submitted = 0;
+    private volatile long n_processed = 0;
+    private volatile Throwable failure = null;
+
+    ObserverPipeline(int runID, List<Observer> observers, double start_time, boolean include_start){
+        //a run restored from a checkpoint has already captured the start time, a new one hasn't
+        if(observers.size() > 64) throw new IllegalArgumentException("at most 64 observers per run");
+        this.observers = observers.toArray(new Observer[0]);
+        this.times = new double[this.observers.length][];
+        this.next_index = new int[this.observers.length];
+        for(int i = 0; i < this.observers.length; i++){
+            for(StateCapture.Kind kind : this.observers[i].events()) event_masks[kind.ordinal()] |= 1L << i;
+            times[i] = this.observers[i].observationTimes();
+            while(next_index[i] < times[i].length && (times[i][next_index[i]] < start_time
+                    || (!include_start && times[i][next_index[i]] == start_time))){
+                next_index[i]++;
+            }
+        }
+
+        consumer = new Thread(this::deliver, "observers-runID-"+runID);
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+
+    double nextTime(){
+        double next = Double.POSITIVE_INFINITY;
+        for(int i = 0; i < observers.length; i++){
+            if(next_index[i] < times[i].length) next = Math.min(next, times[i][next_index[i]]);
+        }
+        return next;
+    }
+
+    long dueAt(double time){
+        //the observers wanting a capture at this time, as a bitmask, and moves them on to their next times
+        long mask = 0;
+        for(int i = 0; i < observers.length; i++){
+            if(next_index[i] < times[i].length && times[i][next_index[i]] <= time){
+                mask |= 1L << i;
+                while(next_index[i] < times[i].length && times[i][next_index[i]] <= time) next_index[i]++;
+            }
+        }
+        return mask;
+    }
+
+    long wantsEvent(StateCapture.Kind kind){
+        //the observers wanting a capture whenever this kind of event happens, as a bitmask
+        return event_masks[kind.ordinal()];
+    }
+
+    long allObservers(){
+        return (observers.length == 64) ? -1L : (1L << observers.length) - 1;
+    }
+
+
+    void submit(StateCapture capture){
+        n_submitted++;
+        ring.put(capture);
+    }
+
+    void awaitIdle(){
+        //waits until every capture submitted so far has been observed, so the observers' results can be read
+        //from the simulation thread (e.g. for a checkpoint)
+        while(n_processed < n_submitted && consumer.isAlive()){
+            Thread.yield();
+        }
+        rethrowFailure();
+    }
+
+    void finish(StateCapture final_state){
+        //hands over the RUN_END capture and waits for the observers to finish with it
+        submit(final_state);
+        try{
+            consumer.join();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        rethrowFailure();
+    }
+
+    void abort(){
+        //for a run that's failed, so the pipeline's thread doesn't wait for captures that won't come
+        consumer.interrupt();
+    }
+
+    private void rethrowFailure(){
+        if(failure instanceof RuntimeException) throw (RuntimeException)failure;
+        if(failure instanceof Error) throw (Error)failure;
+    }
+
+
+    private void deliver(){
+        try{
+            while(true){
+                StateCapture capture = ring.take();
+                try{
+                    if(failure != null){
+                        //an observer has failed, so the run's about to be failed too. nothing more is observed, but
+                        //the captures are still taken off the ring so the simulation thread isn't left waiting
+                        if(capture.kind == StateCapture.Kind.RUN_END) return;
+                        continue;
+                    }
+                    if(capture.kind == StateCapture.Kind.RUN_END){
+                        for(Observer observer : observers) observer.runFinished(capture);
+                        return;
+                    }
+                    for(int i = 0; i < observers.length; i++){
+                        if((capture.observer_mask & (1L << i)) != 0) observers[i].observe(capture);
+                    }
+                }catch(RuntimeException | Error e){
+                    //the first failure is kept and reported to the simulation thread, and later captures skipped
+                    if(failure == null) failure = e;
+                }finally{
+                    n_processed++;
+                }
+            }
+        }catch(InterruptedException e){
+            //aborted
+        }
+    }
+}
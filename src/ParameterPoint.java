@@ -0,0 +1,54 @@
+class ParameterPoint {
+    //the physical parameters of one point in a study. the defaults are the values the model has always used, so a
+    //point only needs the MIC distribution (scale, sigma) and whatever else is being varied.
+
+    double scale, sigma; //mic distb shape parameters
+    double c_max = 10., alpha = 0.01; //max val and steepness of antimicrobial concn
+    int K = 120; //karryking kapacity of each microhab
+    double deterioration_rate = 0.0516;
+    double immigration_rate = 0.8;
+    String label; //appended to the results directory name, generated from the values if not given
+
+    ParameterPoint(double scale, double sigma){
+        this.scale = scale;
+        this.sigma = sigma;
+    }
+
+    ParameterPoint copy(){
+        ParameterPoint p = new ParameterPoint(scale, sigma);
+        p.c_max = c_max;
+        p.alpha = alpha;
+        p.K = K;
+        p.deterioration_rate = deterioration_rate;
+        p.immigration_rate = immigration_rate;
+        p.label = label;
+        return p;
+    }
+
+    ParameterPoint withC_max(double c_max){ParameterPoint p = copy(); p.c_max = c_max; p.label = null; return p;}
+    ParameterPoint withAlpha(double alpha){ParameterPoint p = copy(); p.alpha = alpha; p.label = null; return p;}
+    ParameterPoint withK(int K){ParameterPoint p = copy(); p.K = K; p.label = null; return p;}
+    ParameterPoint withDeterioration_rate(double rate){ParameterPoint p = copy(); p.deterioration_rate = rate; p.label = null; return p;}
+    ParameterPoint withImmigration_rate(double rate){ParameterPoint p = copy(); p.immigration_rate = rate; p.label = null; return p;}
+    ParameterPoint withLabel(String label){ParameterPoint p = copy(); p.label = label; return p;}
+
+    long seedHash(){
+        //a hash of the physical values (not the label), which BioSystem mixes into the master seed so that runs at
+        //different points are independent
+        long hash = 17;
+        for(double value : new double[]{scale, sigma, c_max, alpha, K, deterioration_rate, immigration_rate}){
+            hash = 31*hash + Double.doubleToLongBits(value);
+        }
+        return hash;
+    }
+
+    String getLabel(){
+        if(label != null) return label;
+        return "-scale="+String.format("%.5f", scale)+"-sigma="+String.format("%.5f", sigma)
+                +"-cmax="+c_max+"-alpha="+alpha+"-K="+K+"-det="+deterioration_rate+"-imm="+immigration_rate;
+    }
+
+    @Override
+    public String toString(){return getLabel();}
+
+}
@@ -0,0 +1,201 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+class ParameterSweep {
+    //runs the ensembles of several parameter points as one job stream on a single scheduler, so the pool stays busy
+    //across point boundaries instead of draining at the end of each point's ensemble.
+    //each point writes to its own directory exactly as getEventCountersAndRunPopulations would, and its runs are
+    //seeded just as they would be there, so any single run can still be reproduced with BioSystem.rerunReplicate.
+    //points are independent unless common random numbers line their runs up.
+    //a point's writer and checkpointer are only opened when its first run starts, and closed as soon as its last run
+    //is written, so a long sweep only holds open the few points it's working on.
+    //a point whose ensemble has been fully written gets a marker file, and is skipped if the sweep is run again.
+    //with a stopping rule, each point stops on its own: once it's converged its runs that haven't started are
+    //skipped, those in flight are still written, and the point is then complete.
+    //with common random numbers or antithetic pairs, the sweep ends by reporting how much they've narrowed the
+    //comparisons of every point with the first (see VarianceReduction), written to the first point's directory.
+
+    static final String completion_marker = "point_complete";
+
+    private List<ParameterPoint> points;
+    private int nReps;
+    private RunOptions options;
+
+    //per point. opened, writers and checkpointers are guarded by this, as the first run of a point opens them on a
+    //worker thread. the rest are only used from the thread handling results
+    private boolean[] opened, stopped;
+    private ResultWriter[] writers;
+    private Checkpointer[] checkpointers;
+    private StoppingRule.Progress[] progress;
+    private int[] remaining;
+
+    ParameterSweep(List<ParameterPoint> points, int nReps, RunOptions options){
+        this.points = points;
+        this.nReps = nReps;
+        this.options = options;
+    }
+
+
+    static List<ParameterPoint> grid(List<ParameterPoint> mic_distbs, double[] c_max_values, double[] alpha_values){
+        //every combination of mic distribution, c_max and alpha. the mic distributions keep their other parameters
+        ArrayList<ParameterPoint> grid = new ArrayList<>();
+        for(ParameterPoint mic_distb : mic_distbs){
+            for(double c_max : c_max_values){
+                for(double alpha : alpha_values){
+                    grid.add(mic_distb.withC_max(c_max).withAlpha(alpha));
+                }
+            }
+        }
+        return grid;
+    }
+
+
+    static boolean isComplete(ParameterPoint point){
+        return new File(BioSystem.resultsDirectoryName(point), completion_marker).exists();
+    }
+
+
+    void run(){
+        long startTime = System.currentTimeMillis();
+        System.out.println("master seed: "+options.master_seed);
+
+        int nPoints = points.size();
+        opened = new boolean[nPoints];
+        stopped = new boolean[nPoints];
+        writers = new ResultWriter[nPoints];
+        checkpointers = new Checkpointer[nPoints];
+        progress = new StoppingRule.Progress[nPoints];
+        remaining = new int[nPoints];
+        ArrayList<Integer> jobIDs = new ArrayList<>();
+
+        try{
+            for(int p = 0; p < nPoints; p++){
+                ParameterPoint point = points.get(p);
+                if(isComplete(point)){
+                    System.out.println("skipping completed point "+point);
+                    continue;
+                }
+                //the runs a resumed point already has are read from its event counters file, as its writer will
+                HashMap<Integer, int[]> completed = options.resume ? readCompleted(point) : new HashMap<>();
+                if(options.stopping_rule != null){
+                    //with a stopping rule, nReps is the most runs each point will get
+                    progress[p] = options.stopping_rule.track(nReps);
+                    progress[p].addCompleted(completed);
+                    stopped[p] = progress[p].converged();
+                }
+                for(int runID = 0; runID < nReps && !stopped[p]; runID++){
+                    if(!completed.containsKey(runID)){
+                        //job IDs are point-major, so points are worked through in order and only a few are open at once
+                        jobIDs.add(p*nReps + runID);
+                        remaining[p]++;
+                    }
+                }
+                if(remaining[p] == 0) finishPoint(p);
+            }
+            System.out.println("sweep: "+nPoints+" points, "+jobIDs.size()+" runs to go");
+
+            ReplicateScheduler scheduler = new ReplicateScheduler(options);
+            EnsembleMetrics metrics = new EnsembleMetrics(options);
+            try{
+                scheduler.runAll(jobIDs.stream().mapToInt(Integer::intValue).toArray(),
+                        jobID -> {
+                            int p = jobID/nReps;
+                            //null for the runs of a point that's stopped before they started
+                            if(!open(p)) return null;
+                            return BioSystem.runReplicate(points.get(p), jobID%nReps, options, checkpointers[p], metrics);
+                        },
+                        (jobID, dataBox) -> {
+                            int p = jobID/nReps;
+                            if(dataBox != null){
+                                writers[p].submit(dataBox);
+                                if(progress[p] != null && !stopped[p]){
+                                    progress[p].add(jobID%nReps, dataBox.getEvent_counters());
+                                    if(progress[p].converged()) stop(p);
+                                }
+                            }
+                            if(--remaining[p] == 0) finishPoint(p);
+                        });
+            }finally{
+                scheduler.shutdown();
+                metrics.close();
+            }
+        }finally{
+            //points left unfinished by a failure are closed without a marker, so they're picked up again next time
+            for(ResultWriter writer : writers){
+                if(writer != null) writer.close();
+            }
+        }
+
+        if(options.common_random_numbers || options.antithetic_pairs) reportVarianceReduction();
+
+        String diff = Toolbox.millisToShortDHMS(System.currentTimeMillis() - startTime);
+        System.out.println("sweep finished");
+        System.out.println("Time taken: "+diff);
+    }
+
+
+    private synchronized boolean open(int p){
+        //opens point p's writer and checkpointer for its first run. false once the point has stopped
+        if(stopped[p]) return false;
+        if(!opened[p]){
+            checkpointers[p] = BioSystem.openCheckpointer(points.get(p), options);
+            writers[p] = BioSystem.openResultWriter(points.get(p), options, checkpointers[p]);
+            opened[p] = true;
+        }
+        return true;
+    }
+
+    private synchronized void stop(int p){
+        System.out.println("point converged: "+points.get(p)+"\t"+progress[p].summary());
+        stopped[p] = true;
+    }
+
+    private HashMap<Integer, int[]> readCompleted(ParameterPoint point){
+        try{
+            return Toolbox.readEventCountersFile(BioSystem.resultsDirectoryName(point), BioSystem.eventCountersFilename(point));
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    private void reportVarianceReduction(){
+        //from the event counters files, so points finished by an earlier sweep are included
+        VarianceReduction reduction = new VarianceReduction(points, nReps, options);
+        try{
+            for(int p = 0; p < points.size(); p++){
+                ParameterPoint point = points.get(p);
+                reduction.addCompleted(p, Toolbox.readEventCountersFile(BioSystem.resultsDirectoryName(point), BioSystem.eventCountersFilename(point)));
+            }
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+        reduction.write(BioSystem.resultsDirectoryName(points.get(0)));
+    }
+
+
+    private void finishPoint(int p){
+        //closing the writer waits for its queue to drain, so the marker is only written once every run is on disk.
+        //a point with nothing left to run may never have been opened
+        ParameterPoint point = points.get(p);
+        ResultWriter writer;
+        synchronized(this){
+            stopped[p] = true;
+            writer = writers[p];
+            writers[p] = null;
+        }
+        if(writer != null) writer.close();
+        File directory = new File(BioSystem.resultsDirectoryName(point));
+        if(!directory.exists()) directory.mkdirs();
+        try{
+            new File(directory, completion_marker).createNewFile();
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+        System.out.println("point complete: "+point);
+    }
+}
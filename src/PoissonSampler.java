@@ -0,0 +1,80 @@
+import org.apache.commons.math3.random.RandomGenerator;
+
+class PoissonSampler {
+    //Poisson sampler for the small means used in tau leaping, drawing from the simulation's own generator.
+    //uses inversion (one uniform per draw for means below max_chunk) and allocates nothing per call.
+    //exp(-lambda) is cached for the rate classes which repeat every step (migration, detachment, immigration).
+
+    private static final int cache_size = 16; //must be a power of 2
+    private static final double max_chunk = 30.; //larger means are split up, as exp(-lambda) starts to lose precision
+
+    private RandomGenerator rand;
+    private double[] cached_lambdas = new double[cache_size];
+    private double[] cached_exps = new double[cache_size];
+
+    PoissonSampler(RandomGenerator rand){
+        this.rand = rand;
+        for(int i = 0; i < cache_size; i++){
+            cached_lambdas[i] = -1.;
+        }
+    }
+
+
+    private double expNegLambda(double lambda){
+        long bits = Double.doubleToLongBits(lambda);
+        int slot = (int)(bits ^ (bits >>> 32) ^ (bits >>> 17)) & (cache_size-1);
+
+        if(cached_lambdas[slot] != lambda){
+            cached_lambdas[slot] = lambda;
+            cached_exps[slot] = Math.exp(-lambda);
+        }
+        return cached_exps[slot];
+    }
+
+
+    private int invert(double lambda, double exp_neg_lambda){
+        return invert(lambda, exp_neg_lambda, rand.nextDouble());
+    }
+
+    static int invert(double lambda, double exp_neg_lambda, double u){
+        //the draw for a given uniform, for callers which draw their uniforms in bulk (EventBatch)
+        double p = exp_neg_lambda;
+        double cdf = p;
+        int k = 0;
+
+        while(u > cdf && p > 0.){
+            k++;
+            p *= lambda/k;
+            cdf += p;
+        }
+        return k;
+    }
+
+
+    int sample(double lambda){
+        //for rates which are shared by many bacteria, so exp(-lambda) comes out of the cache
+        if(lambda <= 0.) return 0;
+        if(lambda > max_chunk) return sampleLarge(lambda);
+
+        return invert(lambda, expNegLambda(lambda));
+    }
+
+    int sampleUncached(double lambda){
+        //for rates which are specific to a bacterium, where caching would only evict the shared rates
+        if(lambda <= 0.) return 0;
+        if(lambda > max_chunk) return sampleLarge(lambda);
+
+        return invert(lambda, Math.exp(-lambda));
+    }
+
+    private int sampleLarge(double lambda){
+        //a sum of independent poissons is poisson, so big means are drawn in chunks
+        int k = 0;
+        while(lambda > max_chunk){
+            k += invert(max_chunk, expNegLambda(max_chunk));
+            lambda -= max_chunk;
+        }
+        return k + invert(lambda, Math.exp(-lambda));
+    }
+
+}
@@ -1,3 +1,6 @@
+import java.util.Arrays;
+import java.util.List;
+
 public class PyrithioneMain {
     public static void main(String[] args){
 
@@ -12,6 +15,11 @@ public class PyrithioneMain {
         int nReps = 200;
         System.out.println("geno distbs now with thickness limit and directory creation");
 
-        BioSystem.getEventCountersAndRunPopulations(nReps, scale_99, sigma_99, folderID99);
+        //all three distributions in one sweep, each written where getEventCountersAndRunPopulations would put it
+        List<ParameterPoint> points = Arrays.asList(
+                new ParameterPoint(scale_99, sigma_99).withLabel(folderID99),
+                new ParameterPoint(scale_95, sigma_95).withLabel(folderID95),
+                new ParameterPoint(scale_90, sigma_90).withLabel(folderID90));
+        new ParameterSweep(points, nReps, new RunOptions()).run();
     }
 }
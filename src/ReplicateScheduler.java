@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+class ReplicateScheduler {
+    //runs replicates on a bounded pool, one task per run, so a core that finishes a short run (e.g. one that hit the
+    //thickness limit early) immediately picks up the next one rather than waiting at the end of a section.
+    //at most max_in_flight runs are submitted or holding results that haven't been handled yet, which caps memory.
+    //results are handed to the handler one at a time on the calling thread, in order of completion.
+    //an optional stop condition is checked after each result, and every stop_poll_ms while waiting for one; once it
+    //holds, no more runs are started and those in flight are interrupted, which makes them give up at their next
+    //check (see BioSystem) without writing anything. runAll doesn't return until they have, so the pool can be
+    //kept for further calls (SimulationService keeps one for every job it runs). runs that finished all the same are
+    //handed to the handler before it returns.
+
+    interface ReplicateJob<R> {R run(int runID);}
+    interface ResultHandler<R> {void handle(int runID, R result);}
+    interface StopCondition {boolean reached();}
+
+    private static final long cancel_wait_seconds = 60; //how long shutdown waits for interrupted runs to wind up
+    private static final long stop_poll_ms = 500;
+
+    private int n_threads, max_in_flight;
+    private boolean log_runs; //a line per run as it's handled, otherwise only the summary at the end
+    private ExecutorService pool;
+
+    private long[] run_wall_times; //nanos, per run handled in the last runAll, in order of completion
+    private double utilisation; //fraction of thread time spent on runs during the last runAll
+
+    ReplicateScheduler(int n_threads, int max_in_flight){
+        this(n_threads, max_in_flight, false);
+    }
+
+    ReplicateScheduler(int n_threads, int max_in_flight, boolean log_runs){
+        this.n_threads = n_threads;
+        this.log_runs = log_runs;
+        this.max_in_flight = Math.max(max_in_flight, n_threads);
+        this.pool = Executors.newFixedThreadPool(n_threads, r -> {
+            Thread t = new Thread(r, "replicate-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    ReplicateScheduler(RunOptions options){
+        this(options.n_threads, options.max_in_flight, options.log_measurements);
+    }
+
+
+    double getUtilisation(){return utilisation;}
+
+    void shutdown(){
+        //interrupts any runs still going and waits for them to stop, so nothing is still touching the checkpoints
+        //or metrics once the ensemble's closed them
+        pool.shutdownNow();
+        try{
+            if(!pool.awaitTermination(cancel_wait_seconds, TimeUnit.SECONDS)){
+                System.out.println("replicates still running "+cancel_wait_seconds+" s after being cancelled");
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    <R> void runAll(int[] runIDs, ReplicateJob<R> job, ResultHandler<R> handler){
+        runAll(runIDs, job, handler, null);
+    }
+
+    <R> void runAll(int[] runIDs, ReplicateJob<R> job, ResultHandler<R> handler, StopCondition stop){
+        //runs are started in the order given
+        int[] run_order = runIDs.clone();
+        int n_runs = run_order.length;
+        long[] wall_times = new long[n_runs], handled_wall_times = new long[n_runs];
+        Object[] results = new Object[n_runs];
+        boolean[] finished = new boolean[n_runs]; //run has returned a result that hasn't been handled yet
+        CompletionService<Integer> completions = new ExecutorCompletionService<>(pool);
+        List<Future<Integer>> futures = new ArrayList<>();
+        //a run counts as running from when it's been submitted. it's then claimed either by its task, which starts it and
+        //stops counting it once it's finished, or by cancelAll, which stops counting it before it ever starts
+        AtomicInteger running = new AtomicInteger();
+        AtomicIntegerArray claimed = new AtomicIntegerArray(n_runs);
+
+        long start = System.nanoTime();
+        int submitted = 0, completed = 0;
+        boolean stopped = false;
+
+        try{
+            while(completed < n_runs){
+
+                while(submitted < n_runs && submitted - completed < max_in_flight){
+                    final int position = submitted;
+                    futures.add(completions.submit(() -> {
+                        if(!claimed.compareAndSet(position, 0, 1)) return position; //cancelled before it started
+                        try{
+                            long run_start = System.nanoTime();
+                            results[position] = job.run(run_order[position]);
+                            wall_times[position] = System.nanoTime() - run_start;
+                            finished[position] = true;
+                            return position;
+                        }finally{
+                            running.decrementAndGet();
+                        }
+                    }));
+                    running.incrementAndGet(); //only cancelAll reads it, and that's on this thread
+                    submitted++;
+                }
+
+                Future<Integer> done = (stop == null) ? completions.take() : completions.poll(stop_poll_ms, TimeUnit.MILLISECONDS);
+                if(done == null){
+                    if(stop.reached()){
+                        stopped = true;
+                        break;
+                    }
+                    continue;
+                }
+                int position = done.get();
+                handle(position, run_order, results, finished, handler);
+                handled_wall_times[completed++] = wall_times[position];
+                if(log_runs) logRun(run_order[position], wall_times[position], completed, n_runs);
+
+                if(stop != null && completed < n_runs && stop.reached()){
+                    stopped = true;
+                    break;
+                }
+            }
+
+            if(stopped){
+                cancelAll(futures, claimed, running);
+                //a run can finish after the last result was handled but before it's cancelled, or despite being cancelled
+                //if it was past its last check. it's handled like any other, rather than its results being lost while
+                //its checkpoint is left behind as if it were unfinished
+                int handled_before_stop = completed;
+                for(int position = 0; position < submitted; position++){
+                    if(!finished[position]) continue;
+                    handle(position, run_order, results, finished, handler);
+                    handled_wall_times[completed++] = wall_times[position];
+                    if(log_runs) logRun(run_order[position], wall_times[position], completed, n_runs);
+                }
+                System.out.println("stop condition reached after "+handled_before_stop+" of "+n_runs+" runs, "
+                        +(completed - handled_before_stop)+" more finished while stopping, "+(submitted - completed)+" runs in flight cancelled");
+            }
+
+        }catch(InterruptedException e){
+            cancelAll(futures, claimed, running);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting for replicates", e);
+
+        }catch(ExecutionException e){
+            cancelAll(futures, claimed, running);
+            throw new RuntimeException("replicate failed", e.getCause());
+
+        }catch(RuntimeException | Error e){
+            //from the handler, e.g. a failed result writer. the runs in flight would have nowhere to go
+            cancelAll(futures, claimed, running);
+            throw e;
+        }
+
+        run_wall_times = Arrays.copyOf(handled_wall_times, completed);
+        long elapsed = System.nanoTime() - start;
+        long total_busy = 0;
+        for(long b : run_wall_times) total_busy += b;
+        utilisation = (elapsed > 0) ? total_busy/((double)elapsed*n_threads) : 0.;
+
+        printSummary(elapsed);
+    }
+
+
+    private static <R> void handle(int position, int[] run_order, Object[] results, boolean[] finished, ResultHandler<R> handler){
+        @SuppressWarnings("unchecked") R result = (R)results[position];
+        results[position] = null; //let the result go once it's been handled
+        finished[position] = false;
+        handler.handle(run_order[position], result);
+    }
+
+    private static void logRun(int runID, long wall_time, int completed, int n_runs){
+        System.out.println("runID: "+runID+"\tfinished in "+Toolbox.millisToShortDHMS(wall_time/1000000)+"\t("+completed+"/"+n_runs+")");
+    }
+
+    private static void cancelAll(List<Future<Integer>> futures, AtomicIntegerArray claimed, AtomicInteger running){
+        //interrupts the runs in flight and waits (up to cancel_wait_seconds) for them to give up.
+        //the futures are in order of submission, so a future's index is its run's position
+        for(Future<Integer> f : futures) f.cancel(true);
+        //runs whose tasks hadn't started yet never will, so they stop counting here. the rest have been claimed by
+        //their tasks and are counted until they've wound up, however far they'd got when they were cancelled
+        for(int position = 0; position < futures.size(); position++){
+            if(claimed.compareAndSet(position, 0, 1)) running.decrementAndGet();
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(cancel_wait_seconds);
+        while(running.get() > 0 && System.nanoTime() < deadline){
+            try{
+                Thread.sleep(10);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if(running.get() > 0) System.out.println("replicates still running "+cancel_wait_seconds+" s after being cancelled");
+    }
+
+
+    private void printSummary(long elapsed){
+        long[] sorted = run_wall_times.clone();
+        Arrays.sort(sorted);
+        if(sorted.length == 0) return;
+
+        System.out.println("replicates: "+sorted.length+"\tthreads: "+n_threads
+                +"\trun wall time min/median/max: "+Toolbox.millisToShortDHMS(sorted[0]/1000000)
+                +" / "+Toolbox.millisToShortDHMS(sorted[sorted.length/2]/1000000)
+                +" / "+Toolbox.millisToShortDHMS(sorted[sorted.length-1]/1000000));
+        System.out.println("total wall time: "+Toolbox.millisToShortDHMS(elapsed/1000000)+"\tcore utilisation: "+String.format("%.1f%%", 100.*utilisation));
+    }
+
+}
@@ -0,0 +1,127 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+class ResultWriter {
+    //writes each run's results to disk as soon as the run finishes, on a background thread, so the ensemble never
+    //holds more than queue_capacity finished DataBoxes and I/O overlaps with the simulations still going.
+    //the event counters file is appended to and flushed per run, so a crash only loses the runs in progress.
+    //lines in the event counters file are in order of completion, the runID column says which run each one is.
+    //a run's checkpoint is deleted once its results are safely written: its data file is written and closed first, then
+    //its event counters line is appended, so a run whose data file failed is neither counted nor lost on resume.
+    //if anything on the writer thread fails, it stops writing and the first failure is rethrown by the next submit
+    //and by close, rather than leaving the simulations blocked on a queue nobody is emptying.
+
+    private static final DataBox end_of_results = new DataBox(-1, null, (SnapshotStore)null);
+    private static final long failure_poll_ms = 100; //how often a submit blocked on a full queue checks for a failure
+
+    private String directoryName, mh_pops_filename;
+    private String[] headers;
+    private RunOptions options;
+    private Checkpointer checkpointer;
+    private HashMap<Integer, int[]> completed_runs = new HashMap<>(); //event counters of runs already written by an earlier, resumed ensemble
+    private BlockingQueue<DataBox> queue;
+    private TextEncoder event_counters_writer;
+    private Thread writer_thread;
+    private volatile Throwable failure = null;
+
+    ResultWriter(String directoryName, String event_counters_filename, String[] headers, String mh_pops_filename, RunOptions options, Checkpointer checkpointer){
+        this.directoryName = directoryName;
+        this.mh_pops_filename = mh_pops_filename;
+        this.headers = headers;
+        this.options = options;
+        this.checkpointer = checkpointer;
+        this.queue = new ArrayBlockingQueue<>(options.max_in_flight);
+
+        try{
+            if(options.resume){
+                this.event_counters_writer = Toolbox.reopenEventCountersFile(directoryName, event_counters_filename, headers, completed_runs);
+            }else{
+                this.event_counters_writer = Toolbox.openEventCountersFile(directoryName, event_counters_filename, headers);
+            }
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+
+        this.writer_thread = new Thread(this::writeResults, "result-writer");
+        writer_thread.start();
+    }
+
+
+    HashSet<Integer> getCompletedRunIDs(){return new HashSet<>(completed_runs.keySet());}
+    HashMap<Integer, int[]> getCompletedEventCounters(){return completed_runs;}
+
+    void submit(DataBox dataBox){
+        //blocks while the queue is full, which holds the simulations back if the disk can't keep up
+        try{
+            do{
+                rethrowFailure();
+            }while(!queue.offer(dataBox, failure_poll_ms, TimeUnit.MILLISECONDS));
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while queueing results of run "+dataBox.getRunID(), e);
+        }
+    }
+
+    void close(){
+        try{
+            submit(end_of_results);
+            writer_thread.join();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch(RuntimeException e){
+            //unless the writer has already failed, in which case it will have stopped by itself
+            if(failure == null) throw e;
+        }
+        rethrowFailure();
+    }
+
+    private void rethrowFailure(){
+        Throwable f = failure;
+        if(f == null) return;
+        if(f instanceof IOException) throw new UncheckedIOException("writing results to "+directoryName+" failed", (IOException)f);
+        throw new IllegalStateException("result writer failed while writing to "+directoryName, f);
+    }
+
+
+    private void writeResults(){
+        try{
+            while(true){
+                DataBox dataBox = queue.take();
+                if(dataBox == end_of_results) break;
+
+                String run_filename = mh_pops_filename+String.valueOf(dataBox.getRunID());
+                if(dataBox.getMic_summary() != null){
+                    Toolbox.writeMICSummaryToFile(directoryName, run_filename.replace("mh_pops", "mic_summary"), dataBox.getMic_summary());
+                }else if(options.binary_snapshots){
+                    Toolbox.writeDataboxMicrohabPopsToBinaryFile(directoryName, run_filename, dataBox, options.snapshot_floats, options.snapshot_compression);
+                }else{
+                    Toolbox.writeDataboxMicrohabPopsToFile(directoryName, run_filename, dataBox);
+                }
+
+                //only reached once the data file has been closed without error
+                Toolbox.writeEventCountersLine(event_counters_writer, headers, dataBox.getEvent_counters());
+                event_counters_writer.flush();
+                if(checkpointer != null) checkpointer.delete(dataBox.getRunID());
+            }
+            event_counters_writer.close();
+
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }catch(Throwable t){
+            failure = t;
+            //drop whatever's queued, submit and close report the failure from now on
+            queue.clear();
+            try{
+                event_counters_writer.close();
+            }catch(IOException e){
+                t.addSuppressed(e);
+            }
+        }
+    }
+
+}
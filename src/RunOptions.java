@@ -0,0 +1,104 @@
+import java.util.ArrayList;
+
+class RunOptions {
+    //settings that choose how a run is simulated, as opposed to the physical parameters of the system.
+    //the defaults reproduce the original behaviour.
+
+    enum Engine {TAU_LEAPING, GILLESPIE}
+    enum LeapingScheme {POISSON, CATEGORICAL}
+
+    Engine engine = Engine.TAU_LEAPING; //gillespie is exact, and works on individual bacteria only
+    double tau = 0.01; //tau leaping timestep, and the longest the gillespie engine goes without a check
+    //how tau leaping draws each bacterium's events: independent poissons, rejecting the step if any bacterium dies,
+    //migrates or detaches twice, or one categorical draw of at most one event, which never rejects (individual
+    //bacteria only, genotype classes are always drawn that way)
+    LeapingScheme leaping_scheme = LeapingScheme.POISSON;
+
+    boolean adaptive_tau = false; //pick tau up front from the current rates rather than only halving on rejection
+    double leap_epsilon = 0.03; //max relative change in a microhab population allowed over one leap
+    double rejection_tolerance = 0.01; //target expected no. of rejected sweeps per step when choosing tau
+    boolean genotype_classes = false; //store (MIC, count) classes per microhab and update them with binomial draws
+
+    boolean hybrid = false; //advance saturated deep biofilm microhabs in coarse langevin steps (genotype classes only)
+    double hybrid_min_fill = 0.75; //a biofilm microhab counts as saturated from this fraction of K
+    double hybrid_leap_epsilon = 0.02; //expected events per coarse step, as a fraction of the saturated microhab's N
+    int hybrid_max_steps = 100; //cap on the length of a coarse step, in tau steps
+    double langevin_min_variance = 10.; //event counts with a smaller variance than this are still drawn exactly
+
+    long master_seed = System.nanoTime(); //each replicate's generator is seeded from this, its parameter point and runID
+    boolean common_random_numbers = false; //separate streams for immigration, migration and MICs, lined up across points
+                                           //(runID r then has the same seeds at every point)
+    boolean antithetic_pairs = false; //runs 2k and 2k+1 share their seeds, with 2k+1 drawing every uniform as 1 - u
+
+    int n_threads = Runtime.getRuntime().availableProcessors(); //size of the replicate pool
+    int max_in_flight = 2*n_threads; //max runs submitted or holding unhandled results at once, caps memory use
+
+    boolean binary_snapshots = false; //write population files in the binary format read by SnapshotReader
+    boolean snapshot_floats = false; //store MICs in binary files as floats rather than doubles
+    boolean snapshot_compression = false; //deflate each snapshot in binary files
+
+    //at these defaults a run's summaries are taken twice as often as its snapshots, yet take about a tenth of their
+    //memory for a biofilm of full microhabs, and about a fifth for one that's 30% full (see MICSummary). runs that
+    //never get past a few bacteria in one microhab are the worst case, at about 0.8 of the snapshots' memory.
+    //more measurements or thresholds add to every microhab at every measurement, so don't raise them far
+    boolean mic_summaries = false; //record MIC summaries per microhab instead of full population snapshots
+    int n_summary_measurements = 200; //no. of evenly spaced MIC summaries taken over a run
+    double[] mic_thresholds = {1., 2., 5., 10.}; //the no. of bacteria with MIC above each of these is counted
+    double log10_mic_min = -3., log10_mic_max = 3.; //range of the log10(MIC) histograms
+    int n_mic_bins = 60;
+
+    double progress_interval = 60.; //wall-clock seconds between ensemble summary lines, 0 turns them off
+    boolean log_measurements = false; //print a line from each run at every measurement and when it finishes, as well as the summaries
+    ArrayList<ObserverFactory> observers = new ArrayList<>(); //extra observers given each run, alongside the measurements
+
+    StoppingRule stopping_rule = null; //if set, an ensemble stops once the rule's met, and its no. of runs is only a budget
+
+    double checkpoint_interval = 0.; //wall-clock seconds between checkpoints of each run, 0 turns them off
+    boolean resume = false; //skip runs already in the event counters file and carry on from any checkpoints
+
+    RunOptions(){}
+
+    RunOptions setAdaptiveTau(boolean adaptive_tau){this.adaptive_tau = adaptive_tau; return this;}
+    RunOptions setEngine(Engine engine){this.engine = engine; return this;}
+    RunOptions setTau(double tau){this.tau = tau; return this;}
+    RunOptions setLeapingScheme(LeapingScheme leaping_scheme){this.leaping_scheme = leaping_scheme; return this;}
+    RunOptions setGenotypeClasses(boolean genotype_classes){this.genotype_classes = genotype_classes; return this;}
+    RunOptions setHybrid(boolean hybrid){this.hybrid = hybrid; return this;}
+    RunOptions setHybridThresholds(double min_fill, double leap_epsilon, int max_steps, double langevin_min_variance){
+        this.hybrid_min_fill = min_fill;
+        this.hybrid_leap_epsilon = leap_epsilon;
+        this.hybrid_max_steps = max_steps;
+        this.langevin_min_variance = langevin_min_variance;
+        return this;
+    }
+    RunOptions setMasterSeed(long master_seed){this.master_seed = master_seed; return this;}
+    RunOptions setCommonRandomNumbers(boolean common_random_numbers){this.common_random_numbers = common_random_numbers; return this;}
+    RunOptions setAntitheticPairs(boolean antithetic_pairs){this.antithetic_pairs = antithetic_pairs; return this;}
+    RunOptions setN_threads(int n_threads){this.n_threads = n_threads; return this;}
+    RunOptions setMax_in_flight(int max_in_flight){this.max_in_flight = max_in_flight; return this;}
+    RunOptions setMICSummaries(boolean mic_summaries, int n_summary_measurements){
+        this.mic_summaries = mic_summaries;
+        this.n_summary_measurements = n_summary_measurements;
+        return this;
+    }
+    RunOptions setMICThresholds(double... mic_thresholds){this.mic_thresholds = mic_thresholds; return this;}
+    RunOptions setMICHistogram(double log10_mic_min, double log10_mic_max, int n_mic_bins){
+        this.log10_mic_min = log10_mic_min;
+        this.log10_mic_max = log10_mic_max;
+        this.n_mic_bins = n_mic_bins;
+        return this;
+    }
+    RunOptions setProgressInterval(double progress_interval){this.progress_interval = progress_interval; return this;}
+    RunOptions setLogMeasurements(boolean log_measurements){this.log_measurements = log_measurements; return this;}
+    RunOptions addObserver(ObserverFactory observer){this.observers.add(observer); return this;}
+    RunOptions setStoppingRule(StoppingRule stopping_rule){this.stopping_rule = stopping_rule; return this;}
+    RunOptions setCheckpointInterval(double checkpoint_interval){this.checkpoint_interval = checkpoint_interval; return this;}
+    RunOptions setResume(boolean resume){this.resume = resume; return this;}
+    RunOptions setBinarySnapshots(boolean binary_snapshots, boolean floats, boolean compression){
+        this.binary_snapshots = binary_snapshots;
+        this.snapshot_floats = floats;
+        this.snapshot_compression = compression;
+        return this;
+    }
+
+}
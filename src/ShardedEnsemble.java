@@ -0,0 +1,363 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+public class ShardedEnsemble {
+    //one ensemble split between several worker processes, on one machine or on several sharing a filesystem, which
+    //coordinate only through files in the results directory's shards/ subdirectory:
+    //  ensemble                  master seed, no. of runs and runs per claim, fixed by whichever worker starts first
+    //  claim-<i>                 range i (runIDs i*runs_per_claim onwards) taken by the worker named inside
+    //  attempt-<i>-<worker>-<n>/ everything one attempt at range i writes, until the range is finished
+    //  done-<i>                  range i has been written
+    //  event_counters-range=<i>  range i's lines of the event counters file
+    //  run_metrics-range=<i>.csv range i's lines of run_metrics.csv
+    //files are claimed with an exclusive create (or a hard link, for ones that need contents), which only one process
+    //can win. an attempt writes its event counters, metrics and population files into its own directory, and only
+    //once the whole range is written are they renamed into place: the population files into the results directory,
+    //the rest to the range's pieces above. so a worker that dies, or is wrongly taken for dead and carries on,
+    //never leaves a half-written file where another attempt's output or the merge would pick it up.
+    //a worker keeps touching its claim while it runs the range; a claim that hasn't been touched in stale_seconds
+    //and has no done file belongs to a worker that's died, and is taken over by moving it aside, which again only
+    //one process can do. since every runID has its own seed, a range that's re-run gives exactly the same results.
+    //a worker keeps going until every range is done, waiting on ranges other workers hold and taking over any
+    //that go stale, so a range whose worker dies is always finished by somebody.
+    //once every range is done, the last worker out merges the pieces into the event counters file and
+    //run_metrics.csv (lines in runID order) and removes shards/, leaving the directory as a single process would.
+    //run with: java ShardedEnsemble <nReps> <scale> <sigma> <folderID> [threads], once per worker
+
+    static final String shards_directory = "shards";
+    private static final double heartbeat_seconds = 30.;
+    private static final String attempt_event_counters = "event_counters"; //within an attempt directory, plus .txt
+    private static final String attempt_run_metrics = "run_metrics.csv";
+
+    private ParameterPoint point;
+    private int nReps;
+    private RunOptions options;
+    private int runs_per_claim;
+    private double stale_seconds = 600.;
+    private String worker_name;
+
+    private File results, shards;
+
+    ShardedEnsemble(ParameterPoint point, int nReps, RunOptions options){
+        this.point = point;
+        this.nReps = nReps;
+        this.options = options;
+        //enough runs per claim to keep a worker's threads busy for a while, but not so many that the last few claims
+        //leave other workers idle
+        this.runs_per_claim = Math.max(8, 4*options.n_threads);
+        this.worker_name = defaultWorkerName();
+        this.results = new File(BioSystem.resultsDirectoryName(point));
+        this.shards = new File(results, shards_directory);
+    }
+
+    ShardedEnsemble setRunsPerClaim(int runs_per_claim){this.runs_per_claim = runs_per_claim; return this;}
+    ShardedEnsemble setStaleSeconds(double stale_seconds){this.stale_seconds = stale_seconds; return this;}
+    ShardedEnsemble setWorkerName(String worker_name){this.worker_name = worker_name; return this;}
+
+    private static String defaultWorkerName(){
+        //"pid@host", which is what the runtime mx bean's name is on hotspot
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        if(name.contains("@")) return name;
+        try{
+            return name+"@"+InetAddress.getLocalHost().getHostName();
+        }catch(IOException e){
+            return name;
+        }
+    }
+
+
+    public static void main(String[] args){
+        int nReps = Integer.parseInt(args[0]);
+        ParameterPoint point = new ParameterPoint(Double.parseDouble(args[1]), Double.parseDouble(args[2])).withLabel(args[3]);
+        RunOptions options = new RunOptions();
+        if(args.length > 4) options.setN_threads(Integer.parseInt(args[4])).setMax_in_flight(2*Integer.parseInt(args[4]));
+        new ShardedEnsemble(point, nReps, options).run();
+    }
+
+
+    void run(){
+        //claims and runs ranges until every range is done, then merges
+        try{
+            if(!shards.exists() && new File(results, BioSystem.eventCountersFilename(point)+".txt").exists()){
+                System.out.println("worker "+worker_name+"\t"+results+" already holds a merged ensemble");
+                return;
+            }
+            shards.mkdirs();
+            agreeOnEnsemble();
+            System.out.println("worker "+worker_name+"\tmaster seed: "+options.master_seed+"\truns: "+nReps+"\truns per claim: "+runs_per_claim);
+
+            int n_ranges = (nReps + runs_per_claim - 1)/runs_per_claim;
+            int n_claimed = 0;
+            boolean waiting = false;
+            while(!allDone(n_ranges)){
+                if(!shards.exists()){
+                    System.out.println("worker "+worker_name+"\tensemble already merged by another worker, ran "+n_claimed);
+                    return;
+                }
+                boolean claimed_any = false;
+                for(int range = 0; range < n_ranges; range++){
+                    if(isDone(range) || !claim(range)) continue;
+                    runRange(range);
+                    n_claimed++;
+                    claimed_any = true;
+                    waiting = false;
+                }
+                if(!claimed_any && !allDone(n_ranges)){
+                    //the ranges left are held by other workers: wait for them to finish, or to go stale
+                    if(!waiting) System.out.println("worker "+worker_name+"\twaiting on ranges held by other workers");
+                    waiting = true;
+                    Thread.sleep(pollMillis());
+                }
+            }
+            System.out.println("worker "+worker_name+"\tevery range done, ran "+n_claimed);
+
+            merge(n_ranges);
+
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            System.out.println("worker "+worker_name+"\tinterrupted, ranges it hasn't finished will go stale and be taken over");
+        }
+    }
+
+    private long pollMillis(){
+        //how often a claim is touched, and how often a waiting worker looks for stale claims
+        return (long)(1000*Math.min(heartbeat_seconds, stale_seconds/4));
+    }
+
+
+    private void agreeOnEnsemble() throws IOException{
+        //the first worker records its master seed and the ensemble's shape, every other worker adopts them, as the
+        //ranges and seeds have to be the same everywhere for the pieces to make one ensemble
+        File ensemble = new File(shards, "ensemble");
+        String mine = options.master_seed+" "+nReps+" "+runs_per_claim;
+        createWithContents(ensemble, mine);
+
+        String[] agreed = new String(Files.readAllBytes(ensemble.toPath())).trim().split(" ");
+        options.setMasterSeed(Long.parseLong(agreed[0]));
+        nReps = Integer.parseInt(agreed[1]);
+        runs_per_claim = Integer.parseInt(agreed[2]);
+    }
+
+    private boolean createWithContents(File file, String contents) throws IOException{
+        //written in full to a temp file and then hard linked into place, so the file never exists half written and
+        //only one process can create it. false if it already existed, or if shards/ has gone because another worker
+        //has already merged the ensemble
+        File temp = new File(file.getParentFile(), file.getName()+"."+fileSafe(worker_name)+".tmp");
+        try{
+            Files.write(temp.toPath(), contents.getBytes());
+        }catch(NoSuchFileException e){
+            return false;
+        }
+        try{
+            Files.createLink(file.toPath(), temp.toPath());
+            return true;
+        }catch(FileAlreadyExistsException e){
+            return false;
+        }finally{
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+
+    private File claimFile(int range){return new File(shards, "claim-"+range);}
+    private File doneFile(int range){return new File(shards, "done-"+range);}
+    private boolean isDone(int range){return doneFile(range).exists();}
+
+    private boolean allDone(int n_ranges){
+        for(int range = 0; range < n_ranges; range++){
+            if(!isDone(range)) return false;
+        }
+        return true;
+    }
+
+    private boolean claim(int range) throws IOException{
+        File claim = claimFile(range);
+        if(createWithContents(claim, worker_name)) return true;
+
+        //someone has it, which only matters if they've stopped touching it
+        long age_ms = System.currentTimeMillis() - claim.lastModified();
+        if(claim.exists() && age_ms < 1000*stale_seconds) return false;
+        if(isDone(range)) return false;
+        try{
+            File stale = new File(shards, "stale-claim-"+range+"-"+System.nanoTime());
+            Files.move(claim.toPath(), stale.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            String previous = new String(Files.readAllBytes(stale.toPath()));
+            Files.deleteIfExists(stale.toPath());
+            if(!createWithContents(claim, worker_name)) return false;
+            System.out.println("worker "+worker_name+"\ttook over range "+range+" from "+previous+", untouched for "+age_ms/1000+" s");
+            return true;
+        }catch(NoSuchFileException e){
+            return false; //another worker got there first
+        }
+    }
+
+
+    private void runRange(int range) throws IOException{
+        int first = range*runs_per_claim, last = Math.min(nReps, first + runs_per_claim);
+        File claim = claimFile(range);
+
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "shard-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        long interval_ms = pollMillis();
+        heartbeat.scheduleAtFixedRate(() -> claim.setLastModified(System.currentTimeMillis()), interval_ms, interval_ms, TimeUnit.MILLISECONDS);
+
+        try{
+            File attempt = new File(shards, "attempt-"+range+"-"+fileSafe(worker_name)+"-"+System.nanoTime());
+            //a range taken over from a dead worker is started again from scratch, unless resuming, in which case the
+            //runs its last attempt had written are kept and the rest carry on from any checkpoints
+            if(options.resume) adoptEarlierAttempt(range, attempt);
+            attempt.mkdirs();
+
+            Checkpointer checkpointer = BioSystem.openCheckpointer(point, options);
+            ResultWriter writer = BioSystem.openResultWriter(point, options, checkpointer, attempt.getPath(), attempt_event_counters);
+            HashSet<Integer> completed = writer.getCompletedRunIDs();
+            int[] runIDs = IntStream.range(first, last).filter(runID -> !completed.contains(runID)).toArray();
+            System.out.println("worker "+worker_name+"\trange "+range+": runIDs "+first+" to "+(last-1)+", "+runIDs.length+" to run");
+
+            ReplicateScheduler scheduler = new ReplicateScheduler(options);
+            EnsembleMetrics metrics = new EnsembleMetrics(options, shards_directory+"/"+attempt.getName()+"/"+attempt_run_metrics);
+            try{
+                scheduler.runAll(runIDs,
+                        runID -> BioSystem.runReplicate(point, runID, options, checkpointer, metrics),
+                        (runID, dataBox) -> writer.submit(dataBox));
+            }finally{
+                scheduler.shutdown();
+                writer.close();
+                metrics.close();
+            }
+
+            if(!publishAttempt(range, attempt)){
+                System.out.println("worker "+worker_name+"\trange "+range+" finished after the ensemble was merged by another worker");
+                return;
+            }
+            createWithContents(doneFile(range), worker_name);
+        }finally{
+            heartbeat.shutdownNow();
+        }
+    }
+
+    private static String fileSafe(String name){return name.replaceAll("[^A-Za-z0-9.-]", "_");}
+
+    private void adoptEarlierAttempt(int range, File attempt) throws IOException{
+        //takes over the most recent attempt directory a dead worker left for this range, by renaming it, which only
+        //one worker can do. the others are left for the merge to remove
+        File[] earlier = shards.listFiles((dir, name) -> name.startsWith("attempt-"+range+"-"));
+        if(earlier == null || earlier.length == 0) return;
+        File latest = earlier[0];
+        for(File candidate : earlier){
+            if(candidate.lastModified() > latest.lastModified()) latest = candidate;
+        }
+        try{
+            Files.move(latest.toPath(), attempt.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            System.out.println("worker "+worker_name+"\tresuming range "+range+" from "+latest.getName());
+        }catch(NoSuchFileException e){
+            //gone already, so this attempt starts from scratch
+        }
+    }
+
+    private boolean publishAttempt(int range, File attempt) throws IOException{
+        //moves a finished attempt's files into place: population files into the results directory, and the event
+        //counters and metrics to the range's pieces. another attempt at the same range writes identical files, so
+        //whichever is moved last wins without changing anything. false if shards/ has gone, i.e. already merged
+        try{
+            File[] files = attempt.listFiles();
+            if(files == null) return false;
+            for(File file : files){
+                String name = file.getName();
+                File target;
+                if(name.equals(attempt_event_counters+".txt")) target = new File(shards, "event_counters-range="+range+".txt");
+                else if(name.equals(attempt_run_metrics)) target = new File(shards, "run_metrics-range="+range+".csv");
+                else target = new File(results, name);
+                Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            Files.deleteIfExists(attempt.toPath());
+            return true;
+        }catch(NoSuchFileException e){
+            return false;
+        }
+    }
+
+
+    private void merge(int n_ranges) throws IOException{
+        //only one worker merges, and it's the one that manages to create the merge file
+        if(!createWithContents(new File(shards, "merge"), worker_name)) return;
+
+        TreeMap<Integer, String> event_lines = new TreeMap<>(), metrics_lines = new TreeMap<>();
+        String metrics_header = null;
+        for(int range = 0; range < n_ranges; range++){
+            collectLines(new File(shards, "event_counters-range="+range+".txt"), event_lines);
+            File metrics_piece = new File(shards, "run_metrics-range="+range+".csv");
+            if(metrics_piece.exists()){
+                List<String> lines = Files.readAllLines(metrics_piece.toPath());
+                if(!lines.isEmpty() && metrics_header == null) metrics_header = lines.get(0);
+                collectLines(metrics_piece, metrics_lines);
+            }
+        }
+
+        File event_counters = new File(results, BioSystem.eventCountersFilename(point)+".txt");
+        Toolbox.openEventCountersFile(results.getPath(), BioSystem.eventCountersFilename(point), BioSystem.event_counter_headers).close();
+        ArrayList<String> merged = new ArrayList<>(Files.readAllLines(event_counters.toPath()));
+        merged.addAll(event_lines.values());
+        writeLines(event_counters, merged);
+
+        if(metrics_header != null){
+            ArrayList<String> merged_metrics = new ArrayList<>();
+            merged_metrics.add(metrics_header);
+            merged_metrics.addAll(metrics_lines.values());
+            writeLines(new File(results, EnsembleMetrics.csv_filename), merged_metrics);
+        }
+
+        deleteRecursively(shards);
+        System.out.println("worker "+worker_name+"\tmerged "+event_lines.size()+" runs into "+event_counters);
+    }
+
+    private static void collectLines(File piece, TreeMap<Integer, String> lines) throws IOException{
+        //data lines keyed by the runID in their first column. a runID seen twice (a range re-run after a worker was
+        //taken for dead) has the same results both times, so the first is kept
+        if(!piece.exists()) return;
+        for(String line : Files.readAllLines(piece.toPath())){
+            if(line.startsWith("#") || line.trim().isEmpty()) continue;
+            int comma = line.indexOf(',');
+            if(comma < 0) continue;
+            String first_cell = line.substring(0, comma).trim();
+            if(!first_cell.matches("\\d+")) continue; //the csv header
+            lines.putIfAbsent(Integer.parseInt(first_cell), line);
+        }
+    }
+
+    private static void writeLines(File file, List<String> lines) throws IOException{
+        File temp = new File(file.getPath()+".tmp");
+        StringBuilder contents = new StringBuilder();
+        for(String line : lines) contents.append(line).append(System.lineSeparator());
+        Files.write(temp.toPath(), contents.toString().getBytes());
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void deleteRecursively(File file) throws IOException{
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children) deleteRecursively(child);
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,280 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class SimulationService {
+    //a long-lived process which runs ensembles sent to it over http, so back-to-back studies share one jvm, one
+    //replicate pool and one jit warm-up instead of each paying for them at start-up. only listens on the loopback
+    //interface. jobs are queued, and run one at a time on the whole pool, in the order they arrived:
+    //  POST /jobs?scale=..&sigma=..&nReps=..&folder=..   queues an ensemble and replies with its job id. written to
+    //      all_run_populations<folder> exactly as getEventCountersAndRunPopulations would. optional: c_max, alpha,
+    //      seed, genotype_classes, adaptive_tau, tau, leaping (poisson or categorical), hybrid, resume
+    //  GET /jobs, GET /jobs/<id>   a status line for every job, or one: state, runs done, runs/s, steps/s, events/s
+    //  DELETE /jobs/<id>           cancels a job. a queued one never starts, a running one abandons its runs in
+    //      flight (finished ones stay written, so it can be resumed later with resume=true)
+    //  POST /shutdown              cancels every job and stops the service
+    //replies are plain text, tab separated like the ensembles' own output. e.g.
+    //  curl -X POST 'localhost:8642/jobs?scale=2.7176&sigma=0.56003&nReps=50&folder=-99_suscep'
+    //run with: java -cp out:commons-math3-3.6.1.jar SimulationService [port] [threads]
+
+    private static final int default_port = 8642;
+    private static final String valid_folder = "[A-Za-z0-9_.=+-]+"; //appended to the results directory name
+
+    enum State {QUEUED, RUNNING, DONE, CANCELLED, FAILED}
+
+    private static class Job {
+        final int id;
+        final ParameterPoint point;
+        final int nReps;
+        final RunOptions options;
+        volatile State state = State.QUEUED;
+        volatile boolean cancel_requested = false;
+        volatile EnsembleMetrics metrics;
+        volatile long start_nanos, end_nanos;
+        volatile String error;
+        int queued_ahead; //jobs waiting to start when this one was submitted
+
+        Job(int id, ParameterPoint point, int nReps, RunOptions options){
+            this.id = id;
+            this.point = point;
+            this.nReps = nReps;
+            this.options = options;
+        }
+
+        String statusLine(){
+            StringBuilder line = new StringBuilder("job: "+id+"\tstate: "+state+"\tpoint: "+point+"\tnReps: "+nReps);
+            EnsembleMetrics m = metrics;
+            if(m != null){
+                long end = (state == State.RUNNING) ? System.nanoTime() : end_nanos;
+                double seconds = (end - start_nanos)/1e9;
+                line.append("\truns: ").append(m.getCompletedRuns()).append(" done, ").append(m.getActiveRuns()).append(" active");
+                line.append("\telapsed: ").append(Toolbox.millisToShortDHMS((long)(1000*seconds)));
+                if(seconds > 0.){
+                    line.append(String.format("\truns/s: %.3E\tsteps/s: %.3E\tevents/s: %.3E",
+                            m.getCompletedRuns()/seconds, m.getTauSteps()/seconds, m.getEvents()/seconds));
+                }
+            }
+            if(error != null) line.append("\terror: ").append(error);
+            return line.toString();
+        }
+    }
+
+    private static final Job end_of_jobs = new Job(-1, null, 0, null);
+
+    private int n_threads;
+    private HttpServer server;
+    private ReplicateScheduler scheduler;
+    private LinkedBlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private Map<Integer, Job> jobs = new LinkedHashMap<>(); //in order of submission, guarded by this, as are job states up to RUNNING
+    private int next_id = 1;
+    private Thread runner;
+
+
+    public static void main(String[] args) throws IOException, InterruptedException{
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : default_port;
+        int n_threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        SimulationService service = new SimulationService(port, n_threads);
+        service.awaitShutdown();
+    }
+
+    SimulationService(int port, int n_threads) throws IOException{
+        this.n_threads = n_threads;
+        this.scheduler = new ReplicateScheduler(n_threads, 2*n_threads);
+        warmUp();
+
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/jobs", this::handleJobs);
+        server.createContext("/shutdown", this::handleShutdown);
+        server.start();
+
+        runner = new Thread(this::runJobs, "job-runner");
+        runner.start();
+        System.out.println("simulation service listening on "+server.getAddress()+" with "+n_threads+" threads");
+    }
+
+    void awaitShutdown() throws InterruptedException{
+        runner.join();
+        server.stop(0);
+        scheduler.shutdown();
+        System.out.println("simulation service stopped");
+    }
+
+
+    private static void warmUp(){
+        //a few thousand steps of the default engine, so the first job isn't run by the interpreter
+        long start = System.nanoTime();
+        ParameterPoint point = new ParameterPoint(2.71760274, 0.56002833);
+        BioSystem bs = BioSystem.withBiofilm(point, 10, 0.9, new RunOptions().setMasterSeed(0L));
+        for(int step = 0; step < 2000; step++) bs.performAction();
+        System.out.println("warmed up in "+Toolbox.millisToShortDHMS((System.nanoTime() - start)/1000000));
+    }
+
+
+    private void runJobs(){
+        //the job runner thread. jobs cancelled while queued are skipped
+        while(true){
+            Job job;
+            try{
+                job = queue.take();
+            }catch(InterruptedException e){
+                return;
+            }
+            if(job == end_of_jobs) return;
+            synchronized(this){
+                if(job.cancel_requested) continue;
+                job.metrics = new EnsembleMetrics(job.options);
+                job.start_nanos = System.nanoTime();
+                job.state = State.RUNNING;
+            }
+            System.out.println("starting "+job.statusLine());
+            try{
+                boolean finished = BioSystem.runEnsemble(job.nReps, job.point, job.options, scheduler, job.metrics, () -> job.cancel_requested);
+                job.end_nanos = System.nanoTime();
+                job.state = finished ? State.DONE : State.CANCELLED;
+            }catch(RuntimeException e){
+                job.end_nanos = System.nanoTime();
+                job.error = String.valueOf(e.getCause() != null ? e.getCause() : e);
+                job.state = State.FAILED;
+            }
+            System.out.println("finished "+job.statusLine());
+        }
+    }
+
+
+    ////////////////// HTTP ///////////////////////////
+    private void handleJobs(HttpExchange exchange) throws IOException{
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String id_part = path.replaceFirst("^/jobs/?", "");
+        try{
+            if(id_part.isEmpty()){
+                if(method.equals("POST")){
+                    Job job = submit(parseQuery(exchange.getRequestURI().getRawQuery()));
+                    reply(exchange, 200, "job: "+job.id+"\tqueued, "+job.queued_ahead+" ahead of it");
+                }else if(method.equals("GET")){
+                    StringBuilder lines = new StringBuilder();
+                    synchronized(this){
+                        for(Job job : jobs.values()) lines.append(job.statusLine()).append('\n');
+                    }
+                    reply(exchange, 200, lines.toString().trim());
+                }else{
+                    reply(exchange, 405, "use POST to submit a job or GET to list them");
+                }
+                return;
+            }
+
+            Job job;
+            synchronized(this){
+                job = jobs.get(Integer.parseInt(id_part));
+            }
+            if(job == null){
+                reply(exchange, 404, "no job "+id_part);
+            }else if(method.equals("GET")){
+                reply(exchange, 200, job.statusLine());
+            }else if(method.equals("DELETE")){
+                cancel(job);
+                reply(exchange, 200, job.statusLine());
+            }else{
+                reply(exchange, 405, "use GET for a job's status or DELETE to cancel it");
+            }
+        }catch(IllegalArgumentException e){
+            //including NumberFormatException, from a malformed parameter or job id
+            reply(exchange, 400, e.getMessage());
+        }
+    }
+
+    private void handleShutdown(HttpExchange exchange) throws IOException{
+        if(!exchange.getRequestMethod().equals("POST")){
+            reply(exchange, 405, "use POST to stop the service");
+            return;
+        }
+        synchronized(this){
+            for(Job job : jobs.values()) cancel(job);
+        }
+        queue.add(end_of_jobs);
+        reply(exchange, 200, "stopping once the running job, if any, has wound up");
+    }
+
+    private static void reply(HttpExchange exchange, int status, String body) throws IOException{
+        byte[] bytes = (body+"\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String raw_query) throws IOException{
+        HashMap<String, String> parameters = new HashMap<>();
+        if(raw_query == null) return parameters;
+        for(String pair : raw_query.split("&")){
+            if(pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), "UTF-8");
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+            parameters.put(key, value);
+        }
+        return parameters;
+    }
+
+
+    ////////////////// JOBS ///////////////////////////
+    private Job submit(Map<String, String> parameters){
+        ParameterPoint point = new ParameterPoint(requireDouble(parameters, "scale"), requireDouble(parameters, "sigma"));
+        if(parameters.containsKey("c_max")) point = point.withC_max(Double.parseDouble(parameters.get("c_max")));
+        if(parameters.containsKey("alpha")) point = point.withAlpha(Double.parseDouble(parameters.get("alpha")));
+        String folder = parameters.get("folder");
+        if(folder == null || !folder.matches(valid_folder)){
+            throw new IllegalArgumentException("folder is required and may only contain letters, digits and _.=+-");
+        }
+        point = point.withLabel(folder);
+
+        int nReps = Integer.parseInt(require(parameters, "nReps"));
+        if(nReps <= 0) throw new IllegalArgumentException("nReps must be positive");
+
+        RunOptions options = new RunOptions().setN_threads(n_threads).setMax_in_flight(2*n_threads);
+        if(parameters.containsKey("seed")) options.setMasterSeed(Long.parseLong(parameters.get("seed")));
+        if(parameters.containsKey("genotype_classes")) options.setGenotypeClasses(Boolean.parseBoolean(parameters.get("genotype_classes")));
+        if(parameters.containsKey("adaptive_tau")) options.setAdaptiveTau(Boolean.parseBoolean(parameters.get("adaptive_tau")));
+        if(parameters.containsKey("tau")) options.setTau(Double.parseDouble(parameters.get("tau")));
+        if(parameters.containsKey("leaping")) options.setLeapingScheme(RunOptions.LeapingScheme.valueOf(parameters.get("leaping").toUpperCase()));
+        if(parameters.containsKey("hybrid")) options.setHybrid(Boolean.parseBoolean(parameters.get("hybrid")));
+        if(parameters.containsKey("resume")) options.setResume(Boolean.parseBoolean(parameters.get("resume")));
+        //settings the engine would refuse come back to the client now, rather than failing the job later
+        BioSystem.withBiofilm(point, 1, 0., options);
+
+        synchronized(this){
+            Job job = new Job(next_id++, point, nReps, options);
+            job.queued_ahead = queue.size();
+            jobs.put(job.id, job);
+            queue.add(job);
+            return job;
+        }
+    }
+
+    private synchronized void cancel(Job job){
+        job.cancel_requested = true;
+        if(job.state == State.QUEUED){
+            job.state = State.CANCELLED;
+            queue.remove(job);
+        }
+    }
+
+    private static String require(Map<String, String> parameters, String key){
+        String value = parameters.get(key);
+        if(value == null) throw new IllegalArgumentException(key+" is required");
+        return value;
+    }
+
+    private static double requireDouble(Map<String, String> parameters, String key){
+        return Double.parseDouble(require(parameters, key));
+    }
+}
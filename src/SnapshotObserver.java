@@ -0,0 +1,18 @@
+class SnapshotObserver implements Observer {
+    //the full MIC populations of every microhab at each measurement time, as kept in the DataBox.
+    //fills the store it's given, which a restored run passes in with the measurements it already has
+
+    private double[] observation_times;
+    private SnapshotStore snapshots;
+
+    SnapshotObserver(double[] observation_times, SnapshotStore snapshots){
+        this.observation_times = observation_times;
+        this.snapshots = snapshots;
+    }
+
+    public double[] observationTimes(){return observation_times;}
+
+    public void observe(StateCapture capture){
+        snapshots.add(capture);
+    }
+}
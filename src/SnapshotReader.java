@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+class SnapshotReader implements AutoCloseable {
+    //random access reader for the binary population files written by Toolbox.writeDataboxMicrohabPopsToBinaryFile.
+    //the file is memory mapped and only the header is parsed up front, so pulling out one microhab at one time
+    //only touches the bytes of that snapshot.
+
+    static final String file_extension = ".bin";
+    static final int magic = 0x5059534E; //"PYSN"
+    static final short version = 1;
+    static final int flag_floats = 1, flag_deflated = 2;
+    static final int header_length = 16, index_entry_length = 24;
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int runID, n_snapshots;
+    private boolean floats, deflated;
+
+    private int inflated_snapshot = -1; //the last snapshot decompressed, kept as slices usually come in runs
+    private ByteBuffer inflated_block;
+
+    SnapshotReader(File file) throws IOException{
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+        if(buffer.getInt(0) != magic) throw new IOException(file+" is not a binary population file");
+        if(buffer.getShort(4) != version) throw new IOException(file+" has unsupported version "+buffer.getShort(4));
+        int flags = buffer.getShort(6);
+        floats = (flags & flag_floats) != 0;
+        deflated = (flags & flag_deflated) != 0;
+        runID = buffer.getInt(8);
+        n_snapshots = buffer.getInt(12);
+    }
+
+    static SnapshotReader open(String directoryName, String filename_prefix, int runID) throws IOException{
+        //filename_prefix is the part before the runID, as used for the text files
+        return new SnapshotReader(new File(directoryName+"/"+filename_prefix+runID+file_extension));
+    }
+
+
+    int getRunID(){return runID;}
+    int getN_snapshots(){return n_snapshots;}
+
+    private int indexEntry(int snapshot){return header_length + index_entry_length*snapshot;}
+
+    double getTime(int snapshot){return buffer.getDouble(indexEntry(snapshot));}
+    int getN_microhabs(int snapshot){return buffer.getInt(indexEntry(snapshot) + 20);}
+
+    double[] getTimes(){
+        double[] times = new double[n_snapshots];
+        for(int t = 0; t < n_snapshots; t++) times[t] = getTime(t);
+        return times;
+    }
+
+    int findSnapshot(double time){
+        //index of the snapshot taken closest to the given time
+        int best = 0;
+        for(int t = 1; t < n_snapshots; t++){
+            if(Math.abs(getTime(t) - time) < Math.abs(getTime(best) - time)) best = t;
+        }
+        return best;
+    }
+
+
+    double[] getMicrohabPopulation(int snapshot, int mh_index) throws IOException{
+        ByteBuffer block = snapshotBlock(snapshot);
+        int start = block.getInt(4*mh_index);
+        int end = block.getInt(4*(mh_index+1));
+        int payload_start = 4*(getN_microhabs(snapshot)+1);
+        int value_size = floats ? 4 : 8;
+
+        double[] MICs = new double[end - start];
+        for(int b = 0; b < MICs.length; b++){
+            int position = payload_start + value_size*(start + b);
+            MICs[b] = floats ? block.getFloat(position) : block.getDouble(position);
+        }
+        return MICs;
+    }
+
+    double[][] getSnapshot(int snapshot) throws IOException{
+        double[][] mh_pops = new double[getN_microhabs(snapshot)][];
+        for(int mh = 0; mh < mh_pops.length; mh++){
+            mh_pops[mh] = getMicrohabPopulation(snapshot, mh);
+        }
+        return mh_pops;
+    }
+
+
+    private ByteBuffer snapshotBlock(int snapshot) throws IOException{
+        int entry = indexEntry(snapshot);
+        int offset = (int)buffer.getLong(entry + 8);
+        int length = buffer.getInt(entry + 16);
+
+        ByteBuffer stored = buffer.duplicate();
+        stored.position(offset);
+        stored.limit(offset + length);
+        stored = stored.slice();
+        if(!deflated) return stored;
+
+        if(inflated_snapshot != snapshot){
+            byte[] compressed = new byte[length];
+            stored.get(compressed);
+            inflated_block = inflate(compressed);
+            inflated_snapshot = snapshot;
+        }
+        return inflated_block;
+    }
+
+    private static ByteBuffer inflate(byte[] compressed) throws IOException{
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        byte[] out = new byte[4*compressed.length];
+        int length = 0;
+        try{
+            while(!inflater.finished()){
+                if(length == out.length) out = Arrays.copyOf(out, 2*out.length);
+                int n = inflater.inflate(out, length, out.length - length);
+                if(n == 0 && inflater.needsInput()) throw new IOException("truncated snapshot block");
+                length += n;
+            }
+        }catch(DataFormatException e){
+            throw new IOException("corrupt snapshot block", e);
+        }finally{
+            inflater.end();
+        }
+        return ByteBuffer.wrap(out, 0, length).slice();
+    }
+
+
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+
+}
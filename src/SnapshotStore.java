@@ -0,0 +1,132 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+class SnapshotStore {
+    //the full MIC populations of every microhab at each measurement of a run, held flat in primitive arrays rather
+    //than as lists of boxed Doubles (~20 bytes per MIC), so a snapshot costs 8 bytes per bacterium, or 4 in float
+    //mode. snapshots are added with bulk array copies and read back by the writers in place.
+    //snapshot t covers rows first_row[t] to first_row[t+1]-1, one per microhab, and row r
+    //is the MICs from value_start[r] to value_start[r+1]-1 of the payload, one per bacterium.
+    //float mode is for runs whose binary files store floats anyway, as the text files need the full doubles.
+
+    private boolean floats;
+    private double[] doubles = new double[0];
+    private float[] float_values = new float[0];
+    private int n_values = 0;
+
+    private double[] times = new double[64];
+    private int[] first_row = new int[65];
+    private int n_times = 0;
+    private int[] value_start = new int[1];
+    private int n_rows = 0;
+
+    SnapshotStore(boolean floats){
+        this.floats = floats;
+    }
+
+
+    int getN_snapshots(){return n_times;}
+    double getTime(int t){return times[t];}
+    int getN_microhabs(int t){return first_row[t+1] - first_row[t];}
+    boolean hasFloats(){return floats;}
+
+    int firstValue(int t, int mh){return value_start[first_row[t] + mh];}
+    int getN(int t, int mh){return value_start[first_row[t] + mh + 1] - value_start[first_row[t] + mh];}
+    int getN_values(int t){return value_start[first_row[t+1]] - value_start[first_row[t]];}
+    double getValue(int i){return floats ? float_values[i] : doubles[i];}
+    double getMIC(int t, int mh, int b){return getValue(firstValue(t, mh) + b);}
+
+    double[] getDoubles(){return doubles;} //the payloads, for writers copying whole snapshots
+    float[] getFloats(){return float_values;}
+
+
+    void add(StateCapture capture){
+        int n_microhabs = capture.getN_microhabs();
+        startSnapshot(capture.time, n_microhabs, capture.getTotalN());
+        if(capture.counts == null && !floats){
+            System.arraycopy(capture.MICs, 0, doubles, n_values, capture.MICs.length);
+            for(int mh = 0; mh < n_microhabs; mh++){
+                value_start[n_rows+1] = n_values + capture.mh_starts[mh+1];
+                n_rows++;
+            }
+            n_values += capture.MICs.length;
+        }else{
+            //genotype classes are expanded to a value per bacterium, as that's what's written out
+            for(int mh = 0; mh < n_microhabs; mh++){
+                for(int i = capture.mh_starts[mh]; i < capture.mh_starts[mh+1]; i++){
+                    int multiplicity = (capture.counts == null) ? 1 : capture.counts[i];
+                    for(int k = 0; k < multiplicity; k++) addValue(capture.MICs[i]);
+                }
+                value_start[++n_rows] = n_values;
+            }
+        }
+        endSnapshot();
+    }
+
+    private void startSnapshot(double time, int n_microhabs, int n_bacteria){
+        if(n_times == times.length){
+            times = Arrays.copyOf(times, 2*n_times);
+            first_row = Arrays.copyOf(first_row, 2*n_times+1);
+        }
+        if(n_rows + n_microhabs + 1 > value_start.length){
+            value_start = Arrays.copyOf(value_start, Math.max(n_rows + n_microhabs + 1, 2*value_start.length));
+        }
+        int needed = n_values + n_bacteria;
+        if(floats && needed > float_values.length){
+            float_values = Arrays.copyOf(float_values, Math.max(needed, 2*float_values.length));
+        }else if(!floats && needed > doubles.length){
+            doubles = Arrays.copyOf(doubles, Math.max(needed, 2*doubles.length));
+        }
+        times[n_times] = time;
+    }
+
+    private void addValue(double MIC){
+        if(floats) float_values[n_values++] = (float)MIC;
+        else doubles[n_values++] = MIC;
+    }
+
+    private void endSnapshot(){
+        n_times++;
+        first_row[n_times] = n_rows;
+    }
+
+
+    void writeState(DataOutputStream out) throws IOException{
+        out.writeBoolean(floats);
+        out.writeInt(n_times);
+        for(int t = 0; t < n_times; t++){
+            out.writeDouble(times[t]);
+            out.writeInt(first_row[t+1]);
+        }
+        for(int r = 1; r <= n_rows; r++) out.writeInt(value_start[r]);
+        for(int i = 0; i < n_values; i++){
+            if(floats) out.writeFloat(float_values[i]);
+            else out.writeDouble(doubles[i]);
+        }
+    }
+
+    static SnapshotStore readState(DataInputStream in) throws IOException{
+        SnapshotStore store = new SnapshotStore(in.readBoolean());
+        store.n_times = in.readInt();
+        store.times = new double[Math.max(64, store.n_times)];
+        store.first_row = new int[store.times.length+1];
+        for(int t = 0; t < store.n_times; t++){
+            store.times[t] = in.readDouble();
+            store.first_row[t+1] = in.readInt();
+        }
+        store.n_rows = store.first_row[store.n_times];
+        store.value_start = new int[store.n_rows+1];
+        for(int r = 1; r <= store.n_rows; r++) store.value_start[r] = in.readInt();
+        store.n_values = store.value_start[store.n_rows];
+        if(store.floats){
+            store.float_values = new float[store.n_values];
+            for(int i = 0; i < store.n_values; i++) store.float_values[i] = in.readFloat();
+        }else{
+            store.doubles = new double[store.n_values];
+            for(int i = 0; i < store.n_values; i++) store.doubles[i] = in.readDouble();
+        }
+        return store;
+    }
+}
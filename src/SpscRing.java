@@ -0,0 +1,56 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+class SpscRing<T> {
+    //bounded ring buffer for exactly one producer thread and one consumer thread. each side only ever writes its
+    //own counter, so no locks or CAS are needed. a side that finds the ring full (or empty) parks until the other
+    //side moves its counter on, which it only wakes it for if it's actually waiting.
+
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); //next slot to read, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); //next slot to write, written by the producer
+    private volatile Thread waiting_producer, waiting_consumer;
+
+    SpscRing(int capacity){
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1; //next power of 2
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+
+    void put(T item){
+        long t = tail.get();
+        while(t - head.get() == slots.length){
+            waiting_producer = Thread.currentThread();
+            if(t - head.get() == slots.length) LockSupport.park(this);
+            waiting_producer = null;
+        }
+        slots[(int)(t & mask)] = item;
+        tail.set(t + 1);
+
+        Thread consumer = waiting_consumer;
+        if(consumer != null) LockSupport.unpark(consumer);
+    }
+
+    @SuppressWarnings("unchecked")
+    T take() throws InterruptedException{
+        long h = head.get();
+        while(h == tail.get()){
+            if(Thread.interrupted()) throw new InterruptedException();
+            waiting_consumer = Thread.currentThread();
+            if(h == tail.get()) LockSupport.park(this);
+            waiting_consumer = null;
+        }
+        int slot = (int)(h & mask);
+        T item = (T)slots[slot];
+        slots[slot] = null;
+        head.set(h + 1);
+
+        Thread producer = waiting_producer;
+        if(producer != null) LockSupport.unpark(producer);
+        return item;
+    }
+
+    boolean isEmpty(){return head.get() == tail.get();}
+}
@@ -0,0 +1,66 @@
+import java.util.ArrayList;
+
+class StateCapture {
+    //a copy of a run's state at one moment, taken on the simulation thread and handed to observers on another.
+    //the populations are copied flat into primitive arrays (a couple of arraycopys per microhab), and anything
+    //more expensive, like boxing them into lists, is left to the observers.
+    //entries of microhab mh are MICs[mh_starts[mh]] to MICs[mh_starts[mh+1]-1]. with genotype classes each entry is
+    //a class of counts[i] bacteria, otherwise counts is null and each entry is one bacterium.
+
+    //SCHEDULED captures are taken at observers' observation times. MICROHAB_ADDED and THICKNESS_LIMIT are taken as
+    //those events happen, for observers that asked for them (Observer.events), just after the event. their time is
+    //the event's under gillespie, and the start of the step it happened in under leaping. RUN_END goes to every
+    //observer's runFinished
+    enum Kind {SCHEDULED, MICROHAB_ADDED, THICKNESS_LIMIT, RUN_END}
+
+    final Kind kind;
+    final int runID;
+    final double time;
+    final long observer_mask; //bit i is set if observer i asked for this capture
+    final int n_deaths, n_detachments, n_immigrations, n_replications;
+    final int thickness, biofilm_edge, K;
+    final int[] mh_starts;
+    final double[] MICs;
+    final int[] counts;
+
+    StateCapture(Kind kind, int runID, double time, long observer_mask, int[] events, int thickness, int biofilm_edge,
+                 int K, ArrayList<Microhabitat> microhabitats, boolean genotype_classes){
+        this.kind = kind;
+        this.runID = runID;
+        this.time = time;
+        this.observer_mask = observer_mask;
+        this.n_deaths = events[0];
+        this.n_detachments = events[1];
+        this.n_immigrations = events[2];
+        this.n_replications = events[3];
+        this.thickness = thickness;
+        this.biofilm_edge = biofilm_edge;
+        this.K = K;
+
+        mh_starts = new int[microhabitats.size()+1];
+        for(int mh = 0; mh < microhabitats.size(); mh++){
+            mh_starts[mh+1] = mh_starts[mh] + microhabitats.get(mh).getN_entries();
+        }
+        MICs = new double[mh_starts[microhabitats.size()]];
+        counts = genotype_classes ? new int[MICs.length] : null;
+        for(int mh = 0; mh < microhabitats.size(); mh++){
+            microhabitats.get(mh).copyEntries(MICs, counts, mh_starts[mh]);
+        }
+    }
+
+
+    int getN_microhabs(){return mh_starts.length-1;}
+
+    int getN(int mh){
+        if(counts == null) return mh_starts[mh+1] - mh_starts[mh];
+        int N = 0;
+        for(int i = mh_starts[mh]; i < mh_starts[mh+1]; i++) N += counts[i];
+        return N;
+    }
+
+    int getTotalN(){
+        int total = 0;
+        for(int mh = 0; mh < getN_microhabs(); mh++) total += getN(mh);
+        return total;
+    }
+}
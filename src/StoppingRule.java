@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.Map;
+import org.apache.commons.math3.distribution.TDistribution;
+
+class StoppingRule {
+    //sequential stopping for an ensemble: rather than a fixed no. of runs, replicates keep being launched until the
+    //confidence interval on the mean of every chosen output (columns of the event counters) is narrow enough, or
+    //the ensemble's no. of runs (now a budget) is used up, whichever comes first.
+    //an output has converged when the t-interval half-width is at most relative*|mean| or absolute, so an output
+    //whose mean is ~0 (e.g. thickness at a high c_max) can still converge.
+    //the decision only ever looks at runs 0..n-1 for the longest such prefix that's finished. runs complete in order
+    //of how long they take, and those hitting the thickness limit finish early, so stopping on whichever runs are
+    //back first would bias the ensemble towards them. going by prefix also makes the stopping point the same for a
+    //given master seed whatever the no. of threads. runs past the prefix that happen to finish are still written.
+
+    private static class Output {
+        final String name;
+        final int column;
+        final double relative, absolute;
+
+        Output(String name, int column, double relative, double absolute){
+            this.name = name;
+            this.column = column;
+            this.relative = relative;
+            this.absolute = absolute;
+        }
+    }
+
+    private int min_runs;
+    private double confidence;
+    private ArrayList<Output> outputs = new ArrayList<>();
+
+    StoppingRule(int min_runs, double confidence){
+        this.min_runs = Math.max(min_runs, 2);
+        this.confidence = confidence;
+    }
+
+    static StoppingRule defaults(){
+        //exit time and final thickness to within 5% at 95% confidence, after at least 30 runs
+        return new StoppingRule(30, 0.95)
+                .addOutput("exit time", 0.05, 0.)
+                .addOutput("bf thickness", 0.05, 0.5);
+    }
+
+
+    StoppingRule addOutput(String header, double relative_half_width, double absolute_half_width){
+        //header is one of BioSystem.event_counter_headers
+        int column = -1;
+        for(int i = 0; i < BioSystem.event_counter_headers.length; i++){
+            if(BioSystem.event_counter_headers[i].equals(header)) column = i;
+        }
+        if(column < 0) throw new IllegalArgumentException("no event counter called "+header);
+        outputs.add(new Output(header, column, relative_half_width, absolute_half_width));
+        return this;
+    }
+
+
+    Progress track(int max_runs){
+        return new Progress(max_runs);
+    }
+
+
+    class Progress {
+        //one ensemble's progress towards the rule. only used from the thread handling results
+        private final int max_runs;
+        private int[][] counters; //by runID, null until the run's finished
+        private int prefix = 0; //runs 0..prefix-1 have all finished
+        private double[] means, sums_sq; //welford's running mean and sum of squared deviations over the prefix
+
+        private Progress(int max_runs){
+            this.max_runs = max_runs;
+            this.counters = new int[max_runs][];
+            this.means = new double[outputs.size()];
+            this.sums_sq = new double[outputs.size()];
+        }
+
+        void addCompleted(Map<Integer, int[]> completed){
+            //runs written by an earlier, resumed ensemble
+            for(Map.Entry<Integer, int[]> run : completed.entrySet()) add(run.getKey(), run.getValue());
+        }
+
+        void add(int runID, int[] event_counters){
+            if(runID < 0 || runID >= max_runs) return;
+            counters[runID] = event_counters;
+            while(prefix < max_runs && counters[prefix] != null){
+                int[] run = counters[prefix];
+                prefix++;
+                for(int o = 0; o < outputs.size(); o++){
+                    double x = run[outputs.get(o).column];
+                    double delta = x - means[o];
+                    means[o] += delta/prefix;
+                    sums_sq[o] += delta*(x - means[o]);
+                }
+            }
+        }
+
+        int getN_runs(){return prefix;}
+
+        double halfWidth(int o){
+            if(prefix < 2) return Double.POSITIVE_INFINITY;
+            double t = new TDistribution(null, prefix - 1).inverseCumulativeProbability(0.5 + confidence/2.);
+            return t*Math.sqrt(sums_sq[o]/(prefix - 1.)/prefix);
+        }
+
+        boolean converged(){
+            if(prefix < min_runs) return false;
+            for(int o = 0; o < outputs.size(); o++){
+                Output output = outputs.get(o);
+                if(halfWidth(o) > Math.max(output.relative*Math.abs(means[o]), output.absolute)) return false;
+            }
+            return true;
+        }
+
+        String summary(){
+            StringBuilder line = new StringBuilder("runs: "+prefix);
+            for(int o = 0; o < outputs.size(); o++){
+                line.append("\t").append(outputs.get(o).name).append(": ")
+                        .append(String.format("%.4E +/- %.2E", means[o], halfWidth(o)));
+            }
+            return line.append("\t(").append(Math.round(100*confidence)).append("% CI)").toString();
+        }
+    }
+}
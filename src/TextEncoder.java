@@ -0,0 +1,201 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+
+class TextEncoder implements Closeable {
+    //fixed-width / csv text writer for the Toolbox output files. values are encoded straight into a byte buffer which
+    //is drained into the file channel when full, so writing a line is linear in its length and no format strings are
+    //parsed. the output is byte-identical to the String.format calls it replaces ("%d", "%.nE", "%-ns") as they run
+    //in an english locale. numbers are always written with a '.', whatever the default locale, so a run's files are
+    //the same bytes on every machine and java version; the fallback below formats in Locale.ROOT for the same reason.
+
+    private static final int buffer_size = 1 << 16;
+    private static final byte[] line_separator = System.lineSeparator().getBytes();
+
+    //String.format's %E rounds the digits of the shortest decimal representation of a double, which is what
+    //Double.toString gives up to java 18. from java 19 Double.toString uses a different algorithm, so there we fall
+    //back on String.format to keep the output identical.
+    private static final boolean toString_digits_match_format = javaVersion() <= 18;
+
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(buffer_size);
+    private long n_written = 0; //bytes encoded so far, used to pad cells
+    private long cell_start = 0;
+    private char[] digits = new char[32];
+
+    TextEncoder(File file) throws IOException{
+        this(file, false);
+    }
+
+    TextEncoder(File file, boolean append) throws IOException{
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+
+    private static int javaVersion(){
+        String version = System.getProperty("java.specification.version");
+        if(version.startsWith("1.")) version = version.substring(2);
+        try{
+            return Integer.parseInt(version);
+        }catch(NumberFormatException e){
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private void put(byte b) throws IOException{
+        if(!buffer.hasRemaining()) drain();
+        buffer.put(b);
+        n_written++;
+    }
+
+    private void drain() throws IOException{
+        buffer.flip();
+        while(buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+
+    TextEncoder append(String s) throws IOException{
+        for(int i = 0; i < s.length(); i++){
+            char ch = s.charAt(i);
+            if(ch >= 128){
+                //anything outside ascii goes through the platform charset, as FileWriter would do
+                for(byte b : s.substring(i).getBytes(Charset.defaultCharset())) put(b);
+                return this;
+            }
+            put((byte)ch);
+        }
+        return this;
+    }
+
+    TextEncoder append(char ch) throws IOException{
+        put((byte)ch);
+        return this;
+    }
+
+    TextEncoder appendInt(long value) throws IOException{
+        //same as %d
+        if(value == Long.MIN_VALUE) return append(Long.toString(value));
+        if(value < 0){
+            put((byte)'-');
+            value = -value;
+        }
+        int n = 0;
+        do{
+            digits[n++] = (char)('0' + value%10);
+            value /= 10;
+        }while(value > 0);
+        while(n > 0) put((byte)digits[--n]);
+        return this;
+    }
+
+    TextEncoder appendScientific(double value, int precision) throws IOException{
+        //same as %.(precision)E
+        if(Double.isNaN(value) || Double.isInfinite(value) || !toString_digits_match_format){
+            return append(String.format(Locale.ROOT, "%."+precision+"E", value));
+        }
+
+        if(Double.doubleToRawLongBits(value) < 0) put((byte)'-');
+        value = Math.abs(value);
+
+        if(value == 0.){
+            put((byte)'0');
+            if(precision > 0) put((byte)'.');
+            for(int i = 0; i < precision; i++) put((byte)'0');
+            return append("E+00");
+        }
+
+        //collect the significant digits and decimal exponent from Double.toString, e.g. "1.2345E-5" or "0.00123"
+        String repr = Double.toString(value);
+        int n_digits = 0, exponent = 0, point = -1;
+        boolean leading = true;
+        int i = 0;
+        for(; i < repr.length(); i++){
+            char ch = repr.charAt(i);
+            if(ch == 'E') break;
+            if(ch == '.'){
+                point = n_digits;
+                continue;
+            }
+            if(leading && ch == '0'){
+                if(point >= 0) exponent--;
+                continue;
+            }
+            leading = false;
+            digits[n_digits++] = ch;
+        }
+        int int_digits = (point < 0) ? n_digits : point;
+        if(i < repr.length()) exponent += Integer.parseInt(repr.substring(i+1));
+        //value = 0.d1d2d3... x 10^(exponent + int_digits), so the scientific exponent is one less
+        int sci_exponent = exponent + int_digits - 1;
+
+        //round half up on the first dropped digit, as String.format does
+        int kept = precision + 1;
+        if(n_digits > kept){
+            boolean round_up = digits[kept] >= '5';
+            n_digits = kept;
+            if(round_up){
+                int d = kept - 1;
+                while(d >= 0 && digits[d] == '9'){
+                    digits[d] = '0';
+                    d--;
+                }
+                if(d >= 0){
+                    digits[d]++;
+                }else{
+                    digits[0] = '1';
+                    for(int k = 1; k < kept; k++) digits[k] = '0';
+                    sci_exponent++;
+                }
+            }
+        }
+
+        put((byte)digits[0]);
+        if(precision > 0) put((byte)'.');
+        for(int k = 1; k <= precision; k++){
+            put((byte)(k < n_digits ? digits[k] : '0'));
+        }
+
+        put((byte)'E');
+        put((byte)(sci_exponent < 0 ? '-' : '+'));
+        int abs_exponent = Math.abs(sci_exponent);
+        if(abs_exponent < 10) put((byte)'0');
+        appendInt(abs_exponent);
+        return this;
+    }
+
+
+    TextEncoder startCell(){
+        cell_start = n_written;
+        return this;
+    }
+
+    TextEncoder endCell(int width) throws IOException{
+        //pads everything written since startCell with spaces on the right, like %-(width)s
+        for(long length = n_written - cell_start; length < width; length++) put((byte)' ');
+        return this;
+    }
+
+    TextEncoder newLine() throws IOException{
+        for(byte b : line_separator) put(b);
+        return this;
+    }
+
+
+    void flush() throws IOException{
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException{
+        drain();
+        channel.close();
+    }
+
+}
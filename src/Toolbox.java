@@ -1,8 +1,16 @@
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.zip.Deflater;
 import java.util.concurrent.TimeUnit;
 
 public class Toolbox {
@@ -55,31 +63,28 @@ public class Toolbox {
 
 
     public static void writeHistoArrayToFile(String filename, int[] inputData){
-        try {
-            File file = new File(filename+".txt");
-            if(!file.exists()) file.createNewFile();
-
-            FileWriter fw = new FileWriter(file.getAbsoluteFile());
-            BufferedWriter bw = new BufferedWriter(fw);
+        try(TextEncoder out = new TextEncoder(new File(filename+".txt"))){
 
             int nReadings = inputData.length;
 
             for(int i = 0; i < nReadings-1; i++){
-
-                String output = String.format("%d", inputData[i]);
-
-                bw.write(output);
-                bw.newLine();
+                out.appendInt(inputData[i]).newLine();
             }
-            String output = String.format("%d", inputData[nReadings-1]);
-            bw.write(output);
-            bw.close();
+            out.appendInt(inputData[nReadings-1]);
         }catch (IOException e){}
     }
 
 
 
-
+    private static void writeHeaderLine(TextEncoder out, String[] headers, int string_length) throws IOException{
+        //"#h0,  h1,  ...  hn  ", each entry left-justified in string_length characters
+        out.startCell().append('#').append(headers[0]).append(',').endCell(string_length);
+        for(int i = 1; i < headers.length-1; i++){
+            out.startCell().append(headers[i]).append(',').endCell(string_length);
+        }
+        out.startCell().append(headers[headers.length-1]).endCell(string_length);
+        out.newLine();
+    }
 
 
 
@@ -88,42 +93,21 @@ public class Toolbox {
 
     public static void writeMultipleColumnsToFile(String filename, String[] headers, double[][] results){
 
-        try{
-            File file = new File(filename+".txt");
-            if(!file.exists()) file.createNewFile();
-
-            FileWriter fw = new FileWriter(file.getAbsoluteFile());
-            BufferedWriter bw = new BufferedWriter(fw);
+        try(TextEncoder out = new TextEncoder(new File(filename+".txt"))){
 
             int ncols = headers.length;
             int string_length = Math.max(12, Toolbox.largestHeaderLength(headers)+3);
-            String head_start = "#"+headers[0]+",";
-            String file_header = String.format("%-"+string_length+"s", head_start);
-            for(int i = 1; i < headers.length-1; i++){
-                String heado = headers[i]+",";
-                file_header += String.format("%-"+string_length+"s", heado);
-            }
-            String heado = headers[headers.length-1];
-            file_header += String.format("%-"+string_length+"s", heado);
-            bw.write(file_header);
-            bw.newLine();
+            writeHeaderLine(out, headers, string_length);
 
 
             for(int i = 0; i < results[0].length; i++){
 
-                String output = "";
-
                 for(int nc = 0; nc < ncols-1; nc++){
-                    String num_val = String.format("%.4E", results[nc][i])+",";
-                    output += String.format("%-"+string_length+"s", num_val);
+                    out.startCell().appendScientific(results[nc][i], 4).append(',').endCell(string_length);
                 }
-                String num_val = String.format("%.4E", results[ncols-1][i]);
-                output += String.format("%-"+string_length+"s", num_val);
-
-                bw.write(output);
-                bw.newLine();
+                out.startCell().appendScientific(results[ncols-1][i], 4).endCell(string_length);
+                out.newLine();
             }
-            bw.close();
 
         }catch (IOException e){}
     }
@@ -132,154 +116,253 @@ public class Toolbox {
 
 
     static void writeCountersToFile(String filename, String[] headers, int[][] counters){
-        try{
-            File file = new File(filename+".txt");
-            if(!file.exists()) file.createNewFile();
-
-            FileWriter fw = new FileWriter(file.getAbsoluteFile());
-            BufferedWriter bw = new BufferedWriter(fw);
+        try(TextEncoder out = new TextEncoder(new File(filename+".txt"))){
 
-            int ncols = headers.length;
             int string_length = Math.max(12, Toolbox.largestHeaderLength(headers)+3);
-            String head_start = "#"+headers[0]+",";
-            String file_header = String.format("%-"+string_length+"s", head_start);
-            for(int i = 1; i < headers.length-1; i++){
-                String heado = headers[i]+",";
-                file_header += String.format("%-"+string_length+"s", heado);
+            writeHeaderLine(out, headers, string_length);
+
+            for(int i = 0; i < counters.length; i++){
+                writeCountersLine(out, counters[i], headers.length, string_length);
             }
-            String heado = headers[headers.length-1];
-            file_header += String.format("%-"+string_length+"s", heado);
-            bw.write(file_header);
-            bw.newLine();
 
+        }catch (IOException e){}
 
-            for(int i = 0; i < counters.length; i++){
+    }
 
-                String output = "";
 
-                for(int nc = 0; nc < ncols-1; nc++){
-                    String num_val = String.format("%d", counters[i][nc])+",";
-                    output += String.format("%-"+string_length+"s", num_val);
-                }
-                String num_val = String.format("%d", counters[i][ncols-1]);
-                output += String.format("%-"+string_length+"s", num_val);
+    private static void writeCountersLine(TextEncoder out, int[] counters, int ncols, int string_length) throws IOException{
+        for(int nc = 0; nc < ncols-1; nc++){
+            out.startCell().appendInt(counters[nc]).append(',').endCell(string_length);
+        }
+        out.startCell().appendInt(counters[ncols-1]).endCell(string_length);
+        out.newLine();
+    }
+
+
+    static void writeDataboxEventCountersToFile(String directoryName, String filename, String[] headers, DataBox[] dataBoxes){
+
+        try(TextEncoder out = openEventCountersFile(directoryName, filename, headers)){
 
-                bw.write(output);
-                bw.newLine();
+            for(int i = 0; i < dataBoxes.length; i++){
+                //runID is also included in the event_counters array, so it's printed to file here too
+                writeEventCountersLine(out, headers, dataBoxes[i].getEvent_counters());
             }
-            bw.close();
 
         }catch (IOException e){}
 
     }
 
 
-    static void writeDataboxEventCountersToFile(String directoryName, String filename, String[] headers, DataBox[] dataBoxes){
-
-
+    static TextEncoder openEventCountersFile(String directoryName, String filename, String[] headers) throws IOException{
+        //creates the event counters file and writes its header, leaving it open so runs can be appended as they finish
 
         File directory = new File(directoryName);
         if(!directory.exists()) directory.mkdirs();
 
-        File file = new File(directoryName+"/"+filename+".txt");
-        //if(!file.exists()) file.createNewFile();
+        TextEncoder out = new TextEncoder(new File(directoryName+"/"+filename+".txt"));
+        writeHeaderLine(out, headers, Math.max(12, Toolbox.largestHeaderLength(headers)+3));
 
+        return out;
+    }
 
-        try{
 
-            FileWriter fw = new FileWriter(file.getAbsoluteFile());
-            BufferedWriter bw = new BufferedWriter(fw);
+    static TextEncoder reopenEventCountersFile(String directoryName, String filename, String[] headers, HashMap<Integer, int[]> completed) throws IOException{
+        //for resuming an ensemble. keeps every complete line of an existing event counters file, dropping a last line
+        //cut short by a crash, adds the runs found to completed (by runID), and leaves the file open for appending
 
-            int ncols = headers.length;
-            int string_length = Math.max(12, Toolbox.largestHeaderLength(headers)+3);
-            String head_start = "#"+headers[0]+",";
-            String file_header = String.format("%-"+string_length+"s", head_start);
-            for(int i = 1; i < headers.length-1; i++){
-                String heado = headers[i]+",";
-                file_header += String.format("%-"+string_length+"s", heado);
-            }
-            String heado = headers[headers.length-1];
-            file_header += String.format("%-"+string_length+"s", heado);
-            bw.write(file_header);
-            bw.newLine();
+        File file = new File(directoryName+"/"+filename+".txt");
+        if(!file.exists()) return openEventCountersFile(directoryName, filename, headers);
 
+        String content = new String(Files.readAllBytes(file.toPath()));
+        String line_separator = System.lineSeparator();
+        int end_of_complete_lines = content.lastIndexOf(line_separator);
+        if(end_of_complete_lines < 0) return openEventCountersFile(directoryName, filename, headers);
 
-            for(int i = 0; i < dataBoxes.length; i++){
+        String kept = content.substring(0, end_of_complete_lines + line_separator.length());
+        parseEventCounters(kept, completed);
+        Files.write(file.toPath(), kept.getBytes());
 
-                //runID is also included in the event_counters array, so it's printed to file here too
-                int[] event_counters = dataBoxes[i].getEvent_counters();
-                String output = "";
+        return new TextEncoder(file, true);
+    }
 
-                for(int nc = 0; nc < ncols-1; nc++){
-                    String num_val = String.format("%d", event_counters[nc])+",";
-                    output += String.format("%-"+string_length+"s", num_val);
-                }
-                String num_val = String.format("%d", event_counters[ncols-1]);
-                output += String.format("%-"+string_length+"s", num_val);
 
-                bw.write(output);
-                bw.newLine();
-            }
-            bw.close();
+    static HashMap<Integer, int[]> readEventCountersFile(String directoryName, String filename) throws IOException{
+        //the complete lines of an event counters file, by runID, leaving the file as it is. empty if there's no file
+        HashMap<Integer, int[]> runs = new HashMap<>();
+        File file = new File(directoryName+"/"+filename+".txt");
+        if(!file.exists()) return runs;
 
-        }catch (IOException e){}
+        String content = new String(Files.readAllBytes(file.toPath()));
+        int end_of_complete_lines = content.lastIndexOf(System.lineSeparator());
+        if(end_of_complete_lines >= 0) parseEventCounters(content.substring(0, end_of_complete_lines), runs);
+        return runs;
+    }
 
+    private static void parseEventCounters(String lines, HashMap<Integer, int[]> runs){
+        for(String line : lines.split(System.lineSeparator())){
+            if(line.startsWith("#") || line.trim().isEmpty()) continue;
+            String[] cells = line.split(",");
+            int[] counters = new int[cells.length];
+            for(int i = 0; i < cells.length; i++) counters[i] = Integer.parseInt(cells[i].trim());
+            runs.put(counters[0], counters);
+        }
     }
 
 
-    static void writeDataboxMicrohabPopsToFile(String directoryName, String filename, DataBox dataBox){
+    static void writeEventCountersLine(TextEncoder out, String[] headers, int[] event_counters) throws IOException{
+        writeCountersLine(out, event_counters, headers.length, Math.max(12, Toolbox.largestHeaderLength(headers)+3));
+    }
 
-        File directory = new File(directoryName);
-        if(!directory.exists()) directory.mkdirs();
 
-        File file = new File(directoryName+"/"+filename+".txt");
+    static void writeDataboxMicrohabPopsToFile(String directoryName, String filename, DataBox dataBox) throws IOException{
 
-        try{
+        File directory = new File(directoryName);
+        if(!directory.exists()) directory.mkdirs();
 
-            FileWriter fw = new FileWriter(file.getAbsoluteFile());
-            BufferedWriter bw = new BufferedWriter(fw);
+        try(TextEncoder out = new TextEncoder(new File(directoryName+"/"+filename+".txt"))){
 
-            ArrayList<Double> times = dataBox.getTimes();
-            ArrayList<ArrayList<ArrayList<Double>>> mh_pops_over_time = dataBox.getAll_microhab_pops();
+            SnapshotStore snapshots = dataBox.getSnapshots();
 
 
             int string_length = 12;
 
-            for(int t = 0; t < mh_pops_over_time.size(); t++){
+            for(int t = 0; t < snapshots.getN_snapshots(); t++){
 
-                bw.write("#t = "+String.format("%.3E", times.get(t)));
-                bw.newLine();
+                out.append("#t = ").appendScientific(snapshots.getTime(t), 3).newLine();
 
-                for(int mh = 0; mh < mh_pops_over_time.get(t).size(); mh++){
+                for(int mh = 0; mh < snapshots.getN_microhabs(t); mh++){
 
-                    String output = "";
-                    int nbac = mh_pops_over_time.get(t).get(mh).size();
+                    int first = snapshots.firstValue(t, mh);
+                    int nbac = snapshots.getN(t, mh);
 
                     for(int b = 0; b < nbac-1; b++){
-
-                        String geno_val = String.format("%.5E", mh_pops_over_time.get(t).get(mh).get(b))+",";
-                        output += String.format("%-"+string_length+"s", geno_val);
+                        out.startCell().appendScientific(snapshots.getValue(first+b), 5).append(',').endCell(string_length);
                     }
                     //need to handle if the array is of length 0 - think this does that
                     if(nbac > 0){
-                        String geno_val = String.format("%.5E", mh_pops_over_time.get(t).get(mh).get(nbac-1));
-                        output += String.format("%-"+string_length+"s", geno_val);
+                        out.startCell().appendScientific(snapshots.getValue(first+nbac-1), 5).endCell(string_length);
                     }
 
                     if(nbac==0){
                         //adds a negative value to avoid empty strings
-                        String empty_val = String.format("%.5E", -9999.0);
-                        output += String.format("%-"+string_length+"s", empty_val);
+                        out.startCell().appendScientific(-9999.0, 5).endCell(string_length);
                     }
 
-                    bw.write(output);
-                    bw.newLine();
+                    out.newLine();
                 }
             }
 
-            bw.close();
+        }
+    }
+
 
-        }catch (IOException e){}
+
+
+    static void writeMICSummaryToFile(String directoryName, String filename, MICSummary summary) throws IOException{
+        //the summaries as they're held in memory (see MICSummary), after a magic no. and version. they're written in
+        //binary, as text with a column per histogram bin came out larger than the full snapshots. read them back
+        //with MICSummary.readFile
+
+        File directory = new File(directoryName);
+        if(!directory.exists()) directory.mkdirs();
+
+        File file = new File(directoryName+"/"+filename+MICSummary.file_extension);
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))){
+            out.writeInt(MICSummary.magic);
+            out.writeShort(MICSummary.version);
+            summary.writeState(out);
+        }
+    }
+
+
+
+
+    static void writeDataboxMicrohabPopsToBinaryFile(String directoryName, String filename, DataBox dataBox, boolean use_floats, boolean compress) throws IOException{
+        //binary counterpart of writeDataboxMicrohabPopsToFile, read back with SnapshotReader. layout (big-endian):
+        //  header:     magic, version, flags, runID, no. of snapshots
+        //  time index: per snapshot, its time, file offset, stored length and no. of microhabs
+        //  snapshots:  per snapshot, int offsets[n_mh+1] into the MIC payload followed by the payload itself
+        //              (float or double), deflated as a whole if compress is set
+        //empty microhabs just have equal offsets, so no sentinel value is needed
+
+        File directory = new File(directoryName);
+        if(!directory.exists()) directory.mkdirs();
+
+        File file = new File(directoryName+"/"+filename+SnapshotReader.file_extension);
+
+        SnapshotStore snapshots = dataBox.getSnapshots();
+        int n_snapshots = snapshots.getN_snapshots();
+        int flags = (use_floats ? SnapshotReader.flag_floats : 0) | (compress ? SnapshotReader.flag_deflated : 0);
+
+        ByteBuffer[] blocks = new ByteBuffer[n_snapshots];
+        int[] n_microhabs = new int[n_snapshots];
+        Deflater deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+
+        for(int t = 0; t < n_snapshots; t++){
+            n_microhabs[t] = snapshots.getN_microhabs(t);
+            int first = snapshots.firstValue(t, 0), n_values = snapshots.getN_values(t);
+
+            ByteBuffer block = ByteBuffer.allocate(4*(n_microhabs[t]+1) + (use_floats ? 4 : 8)*n_values);
+            for(int mh = 0; mh <= n_microhabs[t]; mh++){
+                int start = (mh < n_microhabs[t]) ? snapshots.firstValue(t, mh) : first + n_values;
+                block.putInt(start - first);
+            }
+            //the payload goes in with one bulk copy when it's already stored in the precision being written
+            if(use_floats && snapshots.hasFloats()){
+                block.asFloatBuffer().put(snapshots.getFloats(), first, n_values);
+            }else if(!use_floats && !snapshots.hasFloats()){
+                block.asDoubleBuffer().put(snapshots.getDoubles(), first, n_values);
+            }else{
+                ByteBuffer payload = block.slice();
+                for(int i = first; i < first + n_values; i++){
+                    if(use_floats) payload.putFloat((float)snapshots.getValue(i));
+                    else payload.putDouble(snapshots.getValue(i));
+                }
+            }
+            block.position(0);
+
+            blocks[t] = compress ? deflate(deflater, block) : block;
+        }
+        if(deflater != null) deflater.end();
+
+        ByteBuffer header = ByteBuffer.allocate(SnapshotReader.header_length + SnapshotReader.index_entry_length*n_snapshots);
+        header.putInt(SnapshotReader.magic);
+        header.putShort(SnapshotReader.version);
+        header.putShort((short)flags);
+        header.putInt(dataBox.getRunID());
+        header.putInt(n_snapshots);
+
+        long block_offset = header.capacity();
+        for(int t = 0; t < n_snapshots; t++){
+            header.putDouble(snapshots.getTime(t));
+            header.putLong(block_offset);
+            header.putInt(blocks[t].remaining());
+            header.putInt(n_microhabs[t]);
+            block_offset += blocks[t].remaining();
+        }
+        header.flip();
+
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            while(header.hasRemaining()) channel.write(header);
+            for(ByteBuffer block : blocks){
+                while(block.hasRemaining()) channel.write(block);
+            }
+        }
+    }
+
+
+    private static ByteBuffer deflate(Deflater deflater, ByteBuffer block){
+        deflater.reset();
+        deflater.setInput(block.array(), 0, block.limit());
+        deflater.finish();
+
+        byte[] out = new byte[block.limit() + 64];
+        int length = 0;
+        while(!deflater.finished()){
+            if(length == out.length) out = Arrays.copyOf(out, 2*out.length);
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return ByteBuffer.wrap(out, 0, length);
     }
 
 
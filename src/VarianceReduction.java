@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.math3.distribution.TDistribution;
+
+class VarianceReduction {
+    //reports what common random numbers and antithetic pairs have bought an ensemble, for each event counter.
+    //between points, runID r of every point is paired, and the variance of the paired differences is compared with
+    //var_a + var_b, the variance a difference of the same no. of independent runs would have. with antithetic pairs,
+    //the pair means are the independent units instead of the runs, and on its own each point's pair means are
+    //compared with the variance of a mean of two independent runs.
+    //the factors are how many times fewer runs the coupled ensemble needs for the same confidence interval, so
+    //anything above 1 is a saving. only runIDs finished at every point (and both halves of a pair) are counted.
+
+    private static final double confidence = 0.95;
+
+    private List<ParameterPoint> points;
+    private int nReps;
+    private boolean antithetic;
+    private int[][][] counters; //by point, then runID, null until the run's finished
+
+    VarianceReduction(List<ParameterPoint> points, int nReps, RunOptions options){
+        this.points = points;
+        this.nReps = nReps;
+        this.antithetic = options.antithetic_pairs;
+        this.counters = new int[points.size()][nReps][];
+    }
+
+
+    void add(int p, int runID, int[] event_counters){
+        if(runID >= 0 && runID < nReps) counters[p][runID] = event_counters;
+    }
+
+    void addCompleted(int p, Map<Integer, int[]> completed){
+        for(Map.Entry<Integer, int[]> run : completed.entrySet()) add(p, run.getKey(), run.getValue());
+    }
+
+
+    private ArrayList<Integer> usableUnits(){
+        //first runIDs of the units (runs, or pairs of runs) finished at every point
+        ArrayList<Integer> units = new ArrayList<>();
+        int unit_size = antithetic ? 2 : 1;
+        for(int first = 0; first + unit_size <= nReps; first += unit_size){
+            boolean finished = true;
+            for(int[][] point_counters : counters){
+                for(int runID = first; runID < first + unit_size; runID++) finished &= point_counters[runID] != null;
+            }
+            if(finished) units.add(first);
+        }
+        return units;
+    }
+
+    private double runValue(int p, int runID, int column){
+        return counters[p][runID][column];
+    }
+
+    private double unitValue(int p, int first, int column){
+        return antithetic ? (runValue(p, first, column) + runValue(p, first+1, column))/2. : runValue(p, first, column);
+    }
+
+
+    List<String> report(){
+        ArrayList<Integer> units = usableUnits();
+        int unit_size = antithetic ? 2 : 1;
+        int n_units = units.size(), n_runs = unit_size*n_units;
+        ArrayList<String> report = new ArrayList<>();
+        report.add("variance reduction: "+n_runs+" runs per point"+(antithetic ? " in antithetic pairs" : "")
+                +", factors are the no. of independent runs each run is worth");
+        if(n_units < 2) return report;
+
+        String[] headers = BioSystem.event_counter_headers;
+        double t = new TDistribution(null, n_units - 1).inverseCumulativeProbability(0.5 + confidence/2.);
+
+        if(antithetic){
+            for(int p = 0; p < points.size(); p++){
+                report.add(String.format("%-48s%-16s%14s%14s%12s", "#point "+points.get(p), "counter", "mean", "half-width", "factor"));
+                for(int column = 1; column < headers.length; column++){
+                    double[] runs = new double[n_runs], pair_means = new double[n_units];
+                    for(int u = 0; u < n_units; u++){
+                        int first = units.get(u);
+                        runs[2*u] = runValue(p, first, column);
+                        runs[2*u+1] = runValue(p, first+1, column);
+                        pair_means[u] = unitValue(p, first, column);
+                    }
+                    double achieved = variance(pair_means);
+                    report.add(String.format("%-48s%-16s%14.4E%14.4E%12s", "", headers[column], mean(pair_means),
+                            t*Math.sqrt(achieved/n_units), factor(variance(runs)/2., achieved)));
+                }
+            }
+        }
+
+        for(int p = 1; p < points.size(); p++){
+            report.add(String.format("%-48s%-16s%14s%14s%12s", "#"+points.get(p)+" - "+points.get(0), "counter",
+                    "mean diff", "half-width", "factor"));
+            for(int column = 1; column < headers.length; column++){
+                double[] base = new double[n_runs], other = new double[n_runs], differences = new double[n_units];
+                for(int u = 0; u < n_units; u++){
+                    int first = units.get(u);
+                    for(int k = 0; k < unit_size; k++){
+                        base[u*unit_size + k] = runValue(0, first + k, column);
+                        other[u*unit_size + k] = runValue(p, first + k, column);
+                    }
+                    differences[u] = unitValue(p, first, column) - unitValue(0, first, column);
+                }
+                //the independent baseline per unit: var_a + var_b, divided by the no. of runs in a unit
+                double independent = (variance(base) + variance(other))/unit_size;
+                double achieved = variance(differences);
+                report.add(String.format("%-48s%-16s%14.4E%14.4E%12s", "", headers[column], mean(differences),
+                        t*Math.sqrt(achieved/n_units), factor(independent, achieved)));
+            }
+        }
+        return report;
+    }
+
+    void write(String directoryName){
+        //prints the report, and writes it to variance_reduction.txt in the given directory
+        StringBuilder contents = new StringBuilder();
+        for(String line : report()){
+            System.out.println(line);
+            contents.append(line).append(System.lineSeparator());
+        }
+        try{
+            File directory = new File(directoryName);
+            if(!directory.exists()) directory.mkdirs();
+            Files.write(new File(directory, "variance_reduction.txt").toPath(), contents.toString().getBytes());
+        }catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    private static String factor(double independent, double achieved){
+        if(achieved > 0.) return String.format("x%.2f", independent/achieved);
+        return (independent > 0.) ? "inf" : "-";
+    }
+
+    private static double mean(double[] x){
+        double sum = 0.;
+        for(double v : x) sum += v;
+        return sum/x.length;
+    }
+
+    private static double variance(double[] x){
+        double m = mean(x), sum_sq = 0.;
+        for(double v : x) sum_sq += (v - m)*(v - m);
+        return x.length > 1 ? sum_sq/(x.length - 1) : 0.;
+    }
+}
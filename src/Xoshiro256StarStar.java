@@ -0,0 +1,168 @@
+import org.apache.commons.math3.random.BitsStreamGenerator;
+
+class Xoshiro256StarStar extends BitsStreamGenerator {
+    //xoshiro256** generator (Blackman & Vigna), the single source of randomness for a run.
+    //each replicate gets its own instance, seeded from a master seed and its runID through splitmix64, so replicates
+    //share no state and any runID can be re-run on its own and reproduce its output exactly.
+    //extends BitsStreamGenerator so it can also drive the commons-math distributions (e.g. the MIC distribution).
+    //an antithetic generator gives the complement of every word its partner (same seed) would, so each uniform u
+    //comes out as 1 - u (to within 2^-53) and each gaussian z as -z. BioSystem uses this for antithetic pairs of runs.
+
+    private static final long serialVersionUID = 1L;
+    private static final long golden_gamma = 0x9E3779B97F4A7C15L;
+    private static final long stream_gamma = 0xD1B54A32D192ED03L;
+
+    private long s0, s1, s2, s3;
+    private long flip_mask = 0L; //all ones for an antithetic generator
+    private double cached_gaussian = Double.NaN; //second value of the last box-muller pair
+
+    Xoshiro256StarStar(long seed){
+        setSeed(seed);
+    }
+
+    static Xoshiro256StarStar forReplicate(long master_seed, int runID){
+        //the runID is pushed through the splitmix64 mixer first, so neighbouring runIDs give unrelated streams
+        return new Xoshiro256StarStar(replicateSeed(master_seed, runID));
+    }
+
+    static Xoshiro256StarStar forStream(long master_seed, int runID, int stream, boolean antithetic){
+        //one of several independent streams of a replicate, each kept for one kind of draw, so that the draws of a
+        //kind stay lined up between runs of the same runID at different parameter points. stream 0 is forReplicate's
+        Xoshiro256StarStar generator = (stream == 0) ? forReplicate(master_seed, runID)
+                : new Xoshiro256StarStar(splitMix64(replicateSeed(master_seed, runID) + stream_gamma*stream));
+        generator.flip_mask = antithetic ? -1L : 0L;
+        return generator;
+    }
+
+    static long pointSeed(long master_seed, long point_hash){
+        //a master seed for one parameter point, unrelated to that of any other point with the same master seed
+        return master_seed ^ splitMix64(point_hash);
+    }
+
+    private static long replicateSeed(long master_seed, int runID){
+        return splitMix64(master_seed + golden_gamma*(runID + 1L));
+    }
+
+
+    private static long splitMix64(long z){
+        z = (z ^ (z >>> 30))*0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27))*0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    long[] getState(){
+        //everything needed to continue the stream exactly, used for checkpoints
+        return new long[]{s0, s1, s2, s3, Double.doubleToRawLongBits(cached_gaussian)};
+    }
+
+    void getState(long[] state){
+        //as getState(), but into an existing array, for callers which save the state every step
+        state[0] = s0;
+        state[1] = s1;
+        state[2] = s2;
+        state[3] = s3;
+        state[4] = Double.doubleToRawLongBits(cached_gaussian);
+    }
+
+    void setState(long[] state){
+        s0 = state[0];
+        s1 = state[1];
+        s2 = state[2];
+        s3 = state[3];
+        cached_gaussian = Double.longBitsToDouble(state[4]);
+    }
+
+    @Override
+    public void setSeed(long seed){
+        //the state is filled from a splitmix64 sequence, which can't produce the all-zero state
+        long z = seed;
+        s0 = splitMix64(z += golden_gamma);
+        s1 = splitMix64(z += golden_gamma);
+        s2 = splitMix64(z += golden_gamma);
+        s3 = splitMix64(z + golden_gamma);
+        clear();
+    }
+
+    @Override
+    public void setSeed(int seed){setSeed((long)seed);}
+
+    @Override
+    public void setSeed(int[] seed){
+        long combined = 0;
+        for(int s : seed){
+            combined = combined*31 + s;
+        }
+        setSeed(combined);
+    }
+
+    @Override
+    public void clear(){
+        cached_gaussian = Double.NaN;
+        super.clear();
+    }
+
+
+    @Override
+    public long nextLong(){
+        long result = Long.rotateLeft(s1*5, 7)*9;
+        long t = s1 << 17;
+
+        s2 ^= s0;
+        s3 ^= s1;
+        s1 ^= s2;
+        s0 ^= s3;
+        s2 ^= t;
+        s3 = Long.rotateLeft(s3, 45);
+
+        return result ^ flip_mask;
+    }
+
+    @Override
+    protected int next(int bits){
+        return (int)(nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public int nextInt(){return (int)(nextLong() >>> 32);}
+
+    @Override
+    public boolean nextBoolean(){return nextLong() < 0;}
+
+    @Override
+    public double nextDouble(){
+        //top 53 bits, uniform on [0, 1)
+        return (nextLong() >>> 11)*0x1.0p-53;
+    }
+
+    void nextDoubles(double[] out, int n){
+        //the next n values of nextDouble, in order
+        for(int i = 0; i < n; i++){
+            out[i] = (nextLong() >>> 11)*0x1.0p-53;
+        }
+    }
+
+    void skip(int n){
+        //advances the stream as if n doubles (or longs) had been drawn
+        for(int i = 0; i < n; i++) nextLong();
+    }
+
+    @Override
+    public double nextGaussian(){
+        //box-muller, as in BitsStreamGenerator, but with the cached value kept here so that it is part of the state
+        if(!Double.isNaN(cached_gaussian)){
+            double gaussian = cached_gaussian;
+            cached_gaussian = Double.NaN;
+            return gaussian;
+        }
+        //an antithetic generator negates the pair its partner gets from the same words, rather than transforming
+        //complemented uniforms, which wouldn't give -z
+        double sign = (flip_mask == 0L) ? 1. : -1.;
+        double x = ((nextLong() ^ flip_mask) >>> 11)*0x1.0p-53;
+        double y = ((nextLong() ^ flip_mask) >>> 11)*0x1.0p-53;
+        double alpha = 2.*Math.PI*x;
+        double r = sign*Math.sqrt(-2.*Math.log(1. - y));
+        cached_gaussian = r*Math.sin(alpha);
+        return r*Math.cos(alpha);
+    }
+
+}